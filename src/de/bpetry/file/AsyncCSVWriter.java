@@ -0,0 +1,506 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes rows into a CSVWriter on a background thread. Producers copy the
+ * field references of a row into a pre-allocated ring buffer and return
+ * immediately. The fields are converted and written later, therefore they must
+ * not be modified after they have been handed over. Always call close() to
+ * write the remaining rows. A row with a field that cannot be converted (e.g. a
+ * toString() that throws) ends before that field and is recorded as an error. If the
+ * background thread fails fatally (an Error), the buffered rows are discarded
+ * and all further rows are rejected.
+ *
+ * @author Benjamin Petry
+ */
+public class AsyncCSVWriter
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_CAPACITY = 8192;
+    final public static int MAX_RECORDED_ERRORS = 100;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVWriter writer;
+    private final CSVWriter spillWriter;
+    private final CSVBackpressure backpressure;
+    private final int capacity;
+    private final Object[][] slots;
+    private final int[] slotLengths;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final List<IOException> errors = new ArrayList<>();
+    private long head = 0;
+    private long tail = 0;
+    private long droppedRows = 0;
+    private long spilledRows = 0;
+    private long errorCount = 0;
+    private boolean closed = true;
+    private boolean failed = false;
+    private boolean spillClosed = true;
+    private Thread thread = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public AsyncCSVWriter(CSVWriter writer)
+    {
+        this(writer, DEFAULT_CAPACITY, CSVBackpressure.BLOCK);
+    }
+
+    /**
+     * Creates an asynchronous writer that blocks or drops rows if its buffer
+     * is full.
+     *
+     * @param writer the writer to write the rows into (will be opened)
+     * @param capacity the number of rows the ring buffer can hold
+     * @param backpressure BLOCK or DROP_NEWEST
+     */
+    public AsyncCSVWriter(CSVWriter writer, int capacity,
+            CSVBackpressure backpressure)
+    {
+        this(writer, capacity, backpressure, null);
+        if (backpressure == CSVBackpressure.SPILL)
+        {
+            throw new IllegalArgumentException(
+                    "The SPILL backpressure requires a spill writer.");
+        }
+    }
+
+    /**
+     * Creates an asynchronous writer that writes rows synchronously into a
+     * second file if its buffer is full.
+     *
+     * @param writer the writer to write the rows into (will be opened)
+     * @param capacity the number of rows the ring buffer can hold
+     * @param spillWriter the writer for rows that do not fit into the buffer
+     * (will be opened)
+     */
+    public AsyncCSVWriter(CSVWriter writer, int capacity, CSVWriter spillWriter)
+    {
+        this(writer, capacity, CSVBackpressure.SPILL, spillWriter);
+    }
+
+    private AsyncCSVWriter(CSVWriter writer, int capacity,
+            CSVBackpressure backpressure, CSVWriter spillWriter)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException(
+                    "The capacity must be at least 1.");
+        }
+        this.writer = writer;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.spillWriter = spillWriter;
+        this.slots = new Object[capacity][8];
+        this.slotLengths = new int[capacity];
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVBackpressure getBackpressure()
+    {
+        return backpressure;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getDroppedRows()
+    {
+        lock.lock();
+        try
+        {
+            return droppedRows;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getSpilledRows()
+    {
+        lock.lock();
+        try
+        {
+            return spilledRows;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the I/O errors that occurred while writing (at most
+     * MAX_RECORDED_ERRORS). Unchecked exceptions of the background thread are
+     * wrapped into IOExceptions.
+     */
+    public List<IOException> getErrors()
+    {
+        synchronized (errors)
+        {
+            return Collections.unmodifiableList(new ArrayList<>(errors));
+        }
+    }
+
+    /**
+     * @return the number of failed write operations
+     */
+    public long getErrorCount()
+    {
+        synchronized (errors)
+        {
+            return errorCount;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Opens the writer(s) and starts the background thread.
+     *
+     * @return true if the files could be opened
+     */
+    public boolean open()
+    {
+        close();
+        if (!writer.open())
+        {
+            addError(writer);
+            return false;
+        }
+        if (spillWriter != null && !spillWriter.open())
+        {
+            addError(spillWriter);
+            writer.close();
+            return false;
+        }
+        synchronized (errors)
+        {
+            errors.clear();
+            errorCount = 0;
+        }
+        if (spillWriter != null)
+        {
+            synchronized (spillWriter)
+            {
+                spillClosed = false;
+            }
+        }
+        lock.lock();
+        try
+        {
+            head = 0;
+            tail = 0;
+            droppedRows = 0;
+            spilledRows = 0;
+            closed = false;
+            failed = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        thread = new Thread(this::writeRows, "AsyncCSVWriter");
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Writes the remaining rows, stops the background thread and closes the
+     * writer(s).
+     *
+     * @return true if no I/O error occurred since the writer was opened (see
+     * getErrors())
+     */
+    public boolean close()
+    {
+        if (thread == null)
+        {
+            return true;
+        }
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Log.warning("Interrupted while waiting for the csv writer thread",
+                    ex);
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        if (!writer.close())
+        {
+            addError(writer);
+        }
+        if (spillWriter != null)
+        {
+            synchronized (spillWriter)
+            {
+                spillClosed = true;
+                if (!spillWriter.close())
+                {
+                    addError(spillWriter);
+                }
+            }
+        }
+        return getErrorCount() == 0;
+    }
+
+    public boolean println(Collection<? extends Object> fields)
+    {
+        return println(fields.toArray());
+    }
+
+    /**
+     * Hands a row over to the background thread. If the buffer is full, the
+     * backpressure policy decides what happens with the row.
+     *
+     * @param fields the fields of the row
+     * @return true if the row was buffered or spilled, false if it was dropped
+     * or the writer is closed or has failed
+     */
+    public boolean println(Object... fields)
+    {
+        lock.lock();
+        try
+        {
+            while (!closed && !failed && tail - head == capacity)
+            {
+                if (backpressure == CSVBackpressure.DROP_NEWEST)
+                {
+                    droppedRows++;
+                    return false;
+                }
+                if (backpressure == CSVBackpressure.SPILL)
+                {
+                    boolean spilled;
+                    lock.unlock();
+                    try
+                    {
+                        spilled = spill(fields);
+                    }
+                    finally
+                    {
+                        lock.lock();
+                    }
+                    spilledRows += spilled ? 1 : 0;
+                    return spilled;
+                }
+                notFull.await();
+            }
+            if (closed || failed)
+            {
+                return false;
+            }
+            int index = (int) (tail % capacity);
+            Object[] slot = slots[index];
+            if (slot.length < fields.length)
+            {
+                slot = new Object[Math.max(fields.length, slot.length * 2)];
+                slots[index] = slot;
+            }
+            System.arraycopy(fields, 0, slot, 0, fields.length);
+            slotLengths[index] = fields.length;
+            tail++;
+            notEmpty.signal();
+            return true;
+        }
+        catch (InterruptedException ex)
+        {
+            Log.warning("Interrupted while waiting for a free csv row slot", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Main loop of the background thread. Takes all buffered rows at once,
+     * writes them without holding the lock and frees the slots afterwards. A
+     * row that throws an exception is ended, an Error stops the thread (see
+     * fail()).
+     */
+    private void writeRows()
+    {
+        while (true)
+        {
+            long from;
+            long to;
+            lock.lock();
+            try
+            {
+                while (head == tail && !closed)
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (head == tail)
+                {
+                    return;
+                }
+                from = head;
+                to = tail;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            for (long n = from; n < to; n++)
+            {
+                int index = (int) (n % capacity);
+                Object[] slot = slots[index];
+                int length = slotLengths[index];
+                try
+                {
+                    boolean result = true;
+                    for (int i = 0; i < length; i++)
+                    {
+                        result &= writer.print(slot[i]);
+                    }
+                    result &= writer.newLine();
+                    if (!result)
+                    {
+                        addError(writer);
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    addError(ex);
+                    writer.newLine();
+                }
+                catch (Error ex)
+                {
+                    addError(ex);
+                    fail();
+                    return;
+                }
+                finally
+                {
+                    Arrays.fill(slot, 0, length, null);
+                }
+            }
+            lock.lock();
+            try
+            {
+                head = to;
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Discards the buffered rows and rejects all further rows, so that
+     * producers do not wait for a thread that has stopped.
+     */
+    private void fail()
+    {
+        lock.lock();
+        try
+        {
+            failed = true;
+            for (long n = head; n < tail; n++)
+            {
+                int index = (int) (n % capacity);
+                Arrays.fill(slots[index], 0, slotLengths[index], null);
+            }
+            head = tail;
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(Object[] fields)
+    {
+        synchronized (spillWriter)
+        {
+            if (spillClosed)
+            {
+                return false;
+            }
+            if (!spillWriter.println(fields))
+            {
+                addError(spillWriter);
+            }
+        }
+        return true;
+    }
+
+    private void addError(Throwable cause)
+    {
+        IOException ex = new IOException("Could not write csv row", cause);
+        Log.error("Could not write csv row", ex);
+        synchronized (errors)
+        {
+            errorCount++;
+            if (errors.size() < MAX_RECORDED_ERRORS)
+            {
+                errors.add(ex);
+            }
+        }
+    }
+
+    private void addError(CSVWriter failedWriter)
+    {
+        synchronized (errors)
+        {
+            errorCount++;
+            IOException ex = failedWriter.getLastError();
+            if (ex != null && errors.size() < MAX_RECORDED_ERRORS)
+            {
+                errors.add(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel that writes into a growable in-memory ByteBuffer. The written data
+ * stays accessible after the channel has been closed.
+ *
+ * @author Benjamin Petry
+ */
+public class ByteBufferChannel implements WritableByteChannel
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_CAPACITY = 8192;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private ByteBuffer buffer;
+    private boolean open = true;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ByteBufferChannel()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ByteBufferChannel(int initialCapacity)
+    {
+        buffer = ByteBuffer.allocate(Math.max(initialCapacity, 16));
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return a read-only view of the written bytes (position 0, limit =
+     * size()). The view becomes stale if the channel grows afterwards.
+     */
+    public ByteBuffer getBuffer()
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a copy of the written bytes
+     */
+    public byte[] toByteArray()
+    {
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    public int size()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Discards the written bytes and reopens the channel. The capacity is
+     * kept.
+     */
+    public void clear()
+    {
+        buffer.clear();
+        open = true;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public int write(ByteBuffer src) throws ClosedChannelException
+    {
+        if (!open)
+        {
+            throw new ClosedChannelException();
+        }
+        int length = src.remaining();
+        if (buffer.remaining() < length)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                    buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.put(src);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+}
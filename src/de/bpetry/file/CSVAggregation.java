@@ -0,0 +1,23 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Describes how a CSVAggregator combines the values of a column in a group.
+ * Empty and not numeric values are ignored.
+ *
+ * @author Benjamin Petry
+ */
+public enum CSVAggregation
+{
+
+    COUNT, // number of rows or of numeric values of a column
+    SUM, // sum of the values (0 if there are none)
+    MEAN, // arithmetic mean of the values (empty if there are none)
+    MIN, // smallest value (empty if there are none)
+    MAX // largest value (empty if there are none)
+}
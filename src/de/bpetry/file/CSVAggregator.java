@@ -0,0 +1,1008 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Groups the rows of a CSVReader by one or more key columns and writes the
+ * aggregates of every group (see CSVAggregation) into a CSVWriter. The rows
+ * are read in batches by the calling thread and aggregated by a pool of
+ * worker threads. Every worker builds the partial aggregates of its batches
+ * in its own primitive hash table (see CSVGroupTable), the tables are merged
+ * at the end. If the groups of a worker exceed its share of the memory
+ * budget, they are spilled into temporary files that are partitioned by the
+ * hash of the key, and the partitions are aggregated one after another at the
+ * end. The groups are written in no particular order (see CSVSorter).
+ * <pre>
+ * CSVAggregator aggregator = new CSVAggregator(new CSVReader("sales.csv"),
+ *         new CSVWriter("totals.csv"));
+ * aggregator.groupBy("country").groupBy("year")
+ *         .aggregate(CSVAggregation.COUNT)
+ *         .aggregate(CSVAggregation.SUM, "price")
+ *         .aggregate(CSVAggregation.MEAN, "price");
+ * aggregator.run();
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class CSVAggregator
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_BATCH_SIZE = 4096;
+    final public static long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    final private static int SPILL_PARTITIONS = 64;
+    final private static double[] POWERS_OF_TEN =
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+        1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVReader source;
+    private final CSVWriter sink;
+    private final List<Column> keys = new ArrayList<>();
+    private final List<Aggregate> aggregates = new ArrayList<>();
+    private boolean hasHeader = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private File tempDirectory = null;
+    private volatile Exception failure = null;
+    private Spill spill = null;
+    private int spillCount = 0;
+    private long rowsRead = 0;
+    private long groupsWritten = 0;
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates an aggregator. The reader and the writer are opened and closed
+     * by run().
+     *
+     * @param source the reader of the input
+     * @param sink the writer of the groups
+     */
+    public CSVAggregator(CSVReader source, CSVWriter sink)
+    {
+        this.source = source;
+        this.sink = sink;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean hasHeader()
+    {
+        return hasHeader;
+    }
+
+    /**
+     * @param hasHeader true, if the first row contains the names of the
+     * columns (default). Then the output starts with the names of the key
+     * columns and the aggregates (e.g. "mean(price)").
+     */
+    public void setHeader(boolean hasHeader)
+    {
+        this.hasHeader = hasHeader;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of rows that are aggregated by a worker at
+     * once (default: 4096)
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the number of worker threads (default: number of
+     * processors)
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the estimated memory that the groups may take. Every worker gets
+     * an equal share. If its groups exceed the share, they are spilled.
+     *
+     * @param memoryBudget the memory in bytes (default: 64 MiB)
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = Math.max(memoryBudget, 1024);
+    }
+
+    public File getTempDirectory()
+    {
+        return tempDirectory;
+    }
+
+    /**
+     * @param tempDirectory the directory of the spilled groups (null =
+     * default temporary directory)
+     */
+    public void setTempDirectory(File tempDirectory)
+    {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @return the number of rows (without the header) read by the last run
+     */
+    public long getRowsRead()
+    {
+        return rowsRead;
+    }
+
+    /**
+     * @return the number of groups written by the last run
+     */
+    public long getGroupsWritten()
+    {
+        return groupsWritten;
+    }
+
+    /**
+     * @return the number of times the groups of a worker were spilled during
+     * the last run (0 if all groups fitted into the memory)
+     */
+    public synchronized int getSpillCount()
+    {
+        return spillCount;
+    }
+
+    /**
+     * @return the exception of the last failed run or null if no run has
+     * failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Adds a key column. Rows with the same values in all key columns form a
+     * group. Without key columns all rows form one group.
+     *
+     * @param name the name of the column in the header
+     * @return this aggregator
+     */
+    public CSVAggregator groupBy(String name)
+    {
+        keys.add(new Column(-1, name));
+        return this;
+    }
+
+    /**
+     * @param index the index of the key column
+     * @return this aggregator
+     * @see #groupBy(java.lang.String)
+     */
+    public CSVAggregator groupBy(int index)
+    {
+        keys.add(new Column(index, null));
+        return this;
+    }
+
+    /**
+     * Adds the number of rows of a group.
+     *
+     * @param function the function (only COUNT)
+     * @return this aggregator
+     * @throws IllegalArgumentException if the function needs a column
+     */
+    public CSVAggregator aggregate(CSVAggregation function)
+    {
+        if (function != CSVAggregation.COUNT)
+        {
+            throw new IllegalArgumentException("The aggregation " + function
+                    + " needs a column.");
+        }
+        aggregates.add(new Aggregate(function, null));
+        return this;
+    }
+
+    /**
+     * Adds an aggregate of the numeric values of a column.
+     *
+     * @param function the function
+     * @param name the name of the column in the header
+     * @return this aggregator
+     */
+    public CSVAggregator aggregate(CSVAggregation function, String name)
+    {
+        aggregates.add(new Aggregate(function, new Column(-1, name)));
+        return this;
+    }
+
+    /**
+     * @param function the function
+     * @param index the index of the column
+     * @return this aggregator
+     * @see #aggregate(de.bpetry.file.CSVAggregation, java.lang.String)
+     */
+    public CSVAggregator aggregate(CSVAggregation function, int index)
+    {
+        aggregates.add(new Aggregate(function, new Column(index, null)));
+        return this;
+    }
+
+    /**
+     * Reads all rows of the source and writes the aggregates of all groups
+     * into the sink.
+     *
+     * @return true if all rows have been aggregated and all groups written
+     * @throws IllegalArgumentException if a column does not exist
+     */
+    public boolean run()
+    {
+        failure = null;
+        spill = null;
+        spillCount = 0;
+        rowsRead = 0;
+        groupsWritten = 0;
+        IOException previousSourceError = source.getLastError();
+        if (!source.open())
+        {
+            lastError = source.getLastError();
+            return false;
+        }
+        if (!sink.open())
+        {
+            lastError = sink.getLastError();
+            source.close();
+            return false;
+        }
+        ExecutorService workers = null;
+        try
+        {
+            String[] header = hasHeader ? source.readRow() : null;
+            int[] keyColumns = resolveKeys(header);
+            int[] valueColumns = resolveValues(header);
+            int[] columns = Arrays.copyOf(keyColumns,
+                    keyColumns.length + valueColumns.length);
+            System.arraycopy(valueColumns, 0, columns, keyColumns.length,
+                    valueColumns.length);
+            if (header != null)
+            {
+                check(sink.println(createHeader(header, keyColumns)));
+            }
+
+            BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(2 * parallelism);
+            BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(2 * parallelism);
+            for (int n = 0; n < 2 * parallelism; n++)
+            {
+                freeBatches.add(new Batch(batchSize, columns.length));
+            }
+            workers = Executors.newFixedThreadPool(parallelism);
+            List<Future<CSVGroupTable>> tables = new ArrayList<>();
+            for (int n = 0; n < parallelism; n++)
+            {
+                tables.add(workers.submit(() -> aggregateBatches(batches,
+                        freeBatches, keyColumns.length, valueColumns.length)));
+            }
+            try
+            {
+                readBatches(columns, batches, freeBatches);
+                if (source.getLastError() != previousSourceError)
+                {
+                    fail(source.getLastError());
+                }
+            }
+            finally
+            {
+                // the end of the batches
+                for (int n = 0; n < parallelism; n++)
+                {
+                    putUninterruptibly(batches, Batch.END);
+                }
+            }
+            List<CSVGroupTable> results = new ArrayList<>();
+            for (Future<CSVGroupTable> table : tables)
+            {
+                results.add(table.get());
+            }
+            if (failure == null)
+            {
+                writeGroups(results);
+            }
+        }
+        catch (IOException ex)
+        {
+            fail(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            fail((ex.getCause() instanceof Exception)
+                    ? (Exception) ex.getCause() : ex);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            fail(ex);
+        }
+        finally
+        {
+            if (workers != null)
+            {
+                workers.shutdownNow();
+            }
+            if (spill != null)
+            {
+                spill.delete();
+            }
+            source.close();
+            if (!sink.close() && failure == null)
+            {
+                fail(sink.getLastError());
+            }
+        }
+        if (failure != null)
+        {
+            lastError = (failure instanceof IOException) ? (IOException) failure
+                    : new IOException("Could not aggregate csv rows", failure);
+            Log.error("Could not run csv aggregation", lastError);
+            return false;
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private int resolve(Column column, String[] header)
+    {
+        if (column.name == null)
+        {
+            return column.index;
+        }
+        int index = (header != null) ? Arrays.asList(header).indexOf(column.name) : -1;
+        if (index < 0)
+        {
+            throw new IllegalArgumentException("The column " + column.name
+                    + " does not exist.");
+        }
+        return index;
+    }
+
+    private int[] resolveKeys(String[] header)
+    {
+        int[] indices = new int[keys.size()];
+        for (int n = 0; n < indices.length; n++)
+        {
+            indices[n] = resolve(keys.get(n), header);
+        }
+        return indices;
+    }
+
+    /**
+     * Resolves the columns of the aggregates and assigns every aggregate the
+     * index of its value column. Aggregates of the same column share it.
+     *
+     * @return the distinct value columns
+     */
+    private int[] resolveValues(String[] header)
+    {
+        List<Integer> columns = new ArrayList<>();
+        for (Aggregate aggregate : aggregates)
+        {
+            if (aggregate.column == null)
+            {
+                aggregate.value = -1;
+                continue;
+            }
+            int index = resolve(aggregate.column, header);
+            aggregate.value = columns.indexOf(index);
+            if (aggregate.value < 0)
+            {
+                aggregate.value = columns.size();
+                columns.add(index);
+            }
+        }
+        int[] indices = new int[columns.size()];
+        for (int n = 0; n < indices.length; n++)
+        {
+            indices[n] = columns.get(n);
+        }
+        return indices;
+    }
+
+    private Object[] createHeader(String[] header, int[] keyColumns)
+    {
+        Object[] names = new Object[keyColumns.length + aggregates.size()];
+        for (int n = 0; n < keyColumns.length; n++)
+        {
+            names[n] = columnName(header, keyColumns[n]);
+        }
+        for (int n = 0; n < aggregates.size(); n++)
+        {
+            Aggregate aggregate = aggregates.get(n);
+            String name = aggregate.function.name().toLowerCase();
+            if (aggregate.column != null)
+            {
+                name += "(" + columnName(header, resolve(aggregate.column,
+                        header)) + ")";
+            }
+            names[keyColumns.length + n] = name;
+        }
+        return names;
+    }
+
+    /**
+     * Reads the rows of the source into batches and queues them for the
+     * workers until the end of the source or a failure.
+     */
+    private void readBatches(int[] columns, BlockingQueue<Batch> batches,
+            BlockingQueue<Batch> freeBatches) throws InterruptedException
+    {
+        Batch batch = freeBatches.take();
+        while (failure == null && source.next())
+        {
+            batch.add(source, columns);
+            rowsRead++;
+            if (batch.rows == batchSize)
+            {
+                batches.put(batch);
+                batch = freeBatches.take();
+            }
+        }
+        if (batch.rows > 0 && failure == null)
+        {
+            batches.put(batch);
+        }
+    }
+
+    /**
+     * Main loop of a worker. Aggregates the batches of the queue into its own
+     * table until the end of the batches. After a failure the remaining
+     * batches are discarded.
+     *
+     * @return the table with the groups that have not been spilled
+     */
+    private CSVGroupTable aggregateBatches(BlockingQueue<Batch> batches,
+            BlockingQueue<Batch> freeBatches, int keyCount, int valueCount)
+            throws InterruptedException
+    {
+        CSVGroupTable table = new CSVGroupTable(keyCount, valueCount);
+        long share = memoryBudget / parallelism;
+        while (true)
+        {
+            Batch batch = batches.take();
+            if (batch == Batch.END)
+            {
+                return table;
+            }
+            try
+            {
+                if (failure == null)
+                {
+                    batch.aggregate(table, keyCount, valueCount);
+                    if (table.estimateSize() > share)
+                    {
+                        spill(table);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                fail(ex);
+            }
+            batch.rows = 0;
+            batch.length = 0;
+            freeBatches.put(batch);
+        }
+    }
+
+    /**
+     * Writes the groups of a table into the partitions of the spill files and
+     * clears the table.
+     */
+    private void spill(CSVGroupTable table) throws IOException
+    {
+        Spill files;
+        synchronized (this)
+        {
+            if (spill == null)
+            {
+                spill = new Spill(tempDirectory);
+            }
+            files = spill;
+            spillCount++;
+        }
+        int groups = table.getGroupCount();
+        // orders the groups by partition (counting sort)
+        int[] starts = new int[SPILL_PARTITIONS + 1];
+        for (int group = 0; group < groups; group++)
+        {
+            starts[partition(table.getHash(group)) + 1]++;
+        }
+        for (int p = 0; p < SPILL_PARTITIONS; p++)
+        {
+            starts[p + 1] += starts[p];
+        }
+        int[] order = new int[groups];
+        int[] positions = Arrays.copyOf(starts, SPILL_PARTITIONS);
+        for (int group = 0; group < groups; group++)
+        {
+            order[positions[partition(table.getHash(group))]++] = group;
+        }
+        for (int p = 0; p < SPILL_PARTITIONS; p++)
+        {
+            if (starts[p] == starts[p + 1])
+            {
+                continue;
+            }
+            synchronized (files.outputs[p])
+            {
+                for (int n = starts[p]; n < starts[p + 1]; n++)
+                {
+                    table.write(order[n], files.outputs[p]);
+                }
+                files.groups[p] += starts[p + 1] - starts[p];
+            }
+        }
+        table.clear();
+    }
+
+    /**
+     * Merges the tables of the workers and writes the groups. If groups have
+     * been spilled, the tables are spilled as well and the partitions are
+     * merged one after another.
+     */
+    private void writeGroups(List<CSVGroupTable> tables) throws IOException
+    {
+        if (spill == null)
+        {
+            CSVGroupTable result = tables.get(0);
+            for (int n = 1; n < tables.size(); n++)
+            {
+                result.merge(tables.get(n));
+                tables.set(n, null);
+            }
+            writeGroups(result);
+            return;
+        }
+        for (CSVGroupTable table : tables)
+        {
+            spill(table);
+        }
+        spill.close();
+        CSVGroupTable table = tables.get(0);
+        tables.clear();
+        char[] buffer = new char[256];
+        int[] ends = new int[Math.max(keys.size(), 1)];
+        for (int p = 0; p < SPILL_PARTITIONS; p++)
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill.files[p]))))
+            {
+                for (long n = 0; n < spill.groups[p]; n++)
+                {
+                    buffer = table.read(in, buffer, ends);
+                }
+            }
+            writeGroups(table);
+            table.clear();
+            if (!spill.files[p].delete())
+            {
+                Log.warning("Could not delete temporary file " + spill.files[p]);
+            }
+        }
+    }
+
+    private void writeGroups(CSVGroupTable table) throws IOException
+    {
+        KeyView key = new KeyView(table.getKeyChars());
+        for (int group = 0; group < table.getGroupCount(); group++)
+        {
+            for (int k = 0; k < keys.size(); k++)
+            {
+                check(sink.print(key.set(table.getKeyStart(group, k),
+                        table.getKeyEnd(group, k))));
+            }
+            for (Aggregate aggregate : aggregates)
+            {
+                check(print(table, group, aggregate));
+            }
+            check(sink.newLine());
+            groupsWritten++;
+        }
+    }
+
+    private boolean print(CSVGroupTable table, int group, Aggregate aggregate)
+    {
+        if (aggregate.value < 0)
+        {
+            return sink.print(table.getRows(group));
+        }
+        long count = table.getCount(group, aggregate.value);
+        switch (aggregate.function)
+        {
+            case COUNT:
+                return sink.print(count);
+            case SUM:
+                return sink.print(table.getSum(group, aggregate.value));
+            case MEAN:
+                return (count == 0) ? sink.print("")
+                        : sink.print(table.getSum(group, aggregate.value) / count);
+            case MIN:
+                return (count == 0) ? sink.print("")
+                        : sink.print(table.getMin(group, aggregate.value));
+            default:
+                return (count == 0) ? sink.print("")
+                        : sink.print(table.getMax(group, aggregate.value));
+        }
+    }
+
+    private void check(boolean result) throws IOException
+    {
+        if (!result)
+        {
+            throw (sink.getLastError() != null) ? sink.getLastError()
+                    : new IOException("Could not write csv file");
+        }
+    }
+
+    /**
+     * Remembers the first failure.
+     */
+    private synchronized void fail(Exception ex)
+    {
+        if (failure == null)
+        {
+            failure = ex;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static String columnName(String[] header, int index)
+    {
+        return (index < header.length) ? header[index] : String.valueOf(index);
+    }
+
+    /**
+     * @return the spill partition of a group (the high bits of its hash, the
+     * low bits select the slot in the hash table)
+     */
+    private static int partition(int hash)
+    {
+        return hash >>> (32 - Integer.numberOfTrailingZeros(SPILL_PARTITIONS));
+    }
+
+    /**
+     * Parses a number. Plain decimal numbers with up to 15 digits are parsed
+     * directly from the chars (exactly, like Double.parseDouble()), all
+     * others by Double.parseDouble().
+     *
+     * @return the number or NaN if the field is empty or not numeric
+     */
+    private static double parse(char[] chars, int start, int end)
+    {
+        if (start == end)
+        {
+            return Double.NaN;
+        }
+        int pos = start;
+        boolean negative = chars[pos] == '-';
+        if (negative || chars[pos] == '+')
+        {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; pos < end && digits <= 15; pos++)
+        {
+            char c = chars[pos];
+            if (c >= '0' && c <= '9')
+            {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0)
+                {
+                    decimals++;
+                }
+            }
+            else if (c == '.' && decimals < 0)
+            {
+                decimals = 0;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (pos == end && digits > 0 && digits <= 15)
+        {
+            // both numbers are exact, so the quotient is rounded correctly
+            double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals]
+                    : mantissa;
+            return negative ? -value : value;
+        }
+        try
+        {
+            return Double.parseDouble(new String(chars, start, end - start));
+        }
+        catch (NumberFormatException ex)
+        {
+            return Double.NaN;
+        }
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                queue.put(item);
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    private static class Column
+    {
+
+        private final int index;
+        private final String name;
+
+        public Column(int index, String name)
+        {
+            this.index = index;
+            this.name = name;
+        }
+    }
+
+    private static class Aggregate
+    {
+
+        private final CSVAggregation function;
+        private final Column column;
+        private int value = -1; // index of the value column (-1 = rows)
+
+        public Aggregate(CSVAggregation function, Column column)
+        {
+            this.function = function;
+            this.column = column;
+        }
+    }
+
+    /**
+     * Rows that are aggregated together. Only the key and value fields are
+     * copied, all fields of all rows into one char array.
+     */
+    private static class Batch
+    {
+
+        private static final Batch END = new Batch(0, 0);
+
+        private final int columns;
+        private char[] chars = new char[1024];
+        private int length = 0;
+        private final int[] ends;
+        private int rows = 0;
+
+        public Batch(int size, int columns)
+        {
+            this.columns = columns;
+            this.ends = new int[size * columns];
+        }
+
+        public void add(CSVReader reader, int[] indices)
+        {
+            int fieldCount = reader.getFieldCount();
+            int offset = rows * columns;
+            for (int n = 0; n < columns; n++)
+            {
+                if (indices[n] < fieldCount)
+                {
+                    CharSequence field = reader.getField(indices[n]);
+                    int fieldLength = field.length();
+                    if (length + fieldLength > chars.length)
+                    {
+                        chars = Arrays.copyOf(chars,
+                                Math.max(2 * chars.length, length + fieldLength));
+                    }
+                    for (int c = 0; c < fieldLength; c++)
+                    {
+                        chars[length++] = field.charAt(c);
+                    }
+                }
+                ends[offset + n] = length;
+            }
+            rows++;
+        }
+
+        public void aggregate(CSVGroupTable table, int keyCount, int valueCount)
+        {
+            for (int row = 0; row < rows; row++)
+            {
+                int offset = row * columns;
+                int start = (offset == 0) ? 0 : ends[offset - 1];
+                int group = table.group(CSVGroupTable.hash(keyCount, chars,
+                        ends, offset, start), chars, ends, offset, start);
+                table.addRow(group);
+                for (int v = 0; v < valueCount; v++)
+                {
+                    int index = offset + keyCount + v;
+                    int fieldStart = (index == 0) ? 0 : ends[index - 1];
+                    table.addValue(group, v, parse(chars, fieldStart,
+                            ends[index]));
+                }
+            }
+        }
+    }
+
+    /**
+     * The temporary files of the spilled groups, one per partition.
+     */
+    private static class Spill
+    {
+
+        private final File[] files = new File[SPILL_PARTITIONS];
+        private final DataOutputStream[] outputs
+                = new DataOutputStream[SPILL_PARTITIONS];
+        private final long[] groups = new long[SPILL_PARTITIONS];
+
+        public Spill(File directory) throws IOException
+        {
+            try
+            {
+                for (int p = 0; p < SPILL_PARTITIONS; p++)
+                {
+                    files[p] = File.createTempFile("csvgroups", ".bin",
+                            directory);
+                    outputs[p] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(files[p])));
+                }
+            }
+            catch (IOException ex)
+            {
+                delete();
+                throw ex;
+            }
+        }
+
+        public void close() throws IOException
+        {
+            for (DataOutputStream output : outputs)
+            {
+                output.close();
+            }
+        }
+
+        public void delete()
+        {
+            for (int p = 0; p < SPILL_PARTITIONS; p++)
+            {
+                if (outputs[p] != null)
+                {
+                    try
+                    {
+                        outputs[p].close();
+                    }
+                    catch (IOException ex)
+                    {
+                        Log.warning("Could not close temporary file " + files[p], ex);
+                    }
+                }
+                if (files[p] != null && files[p].exists() && !files[p].delete())
+                {
+                    Log.warning("Could not delete temporary file " + files[p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * View of a key field in the key chars of a table.
+     */
+    private static class KeyView implements CharSequence
+    {
+
+        private final char[] chars;
+        private int start = 0;
+        private int end = 0;
+
+        public KeyView(char[] chars)
+        {
+            this.chars = chars;
+        }
+
+        public KeyView set(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length()
+        {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return chars[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to)
+        {
+            return new String(chars, start + from, to - from);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(chars, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Scans an existing csv file before the CSVWriter appends to it. The rows are
+ * counted by quote parity, so the charset must be ASCII compatible. The result
+ * is saved next to the file (see getStateFile()) whenever the CSVWriter opens
+ * or closes the file in the append mode. A restart continues from the saved
+ * state: if the file has not been changed since, it is not read at all, and
+ * if rows have been appended without a clean close (e.g. after a crash), only
+ * these rows are scanned. Otherwise the file is scanned from the beginning.
+ *
+ * The last row is regarded as torn (e.g. by a crash while writing) only if a
+ * quoted field is not closed. A line separator that has only partly been
+ * written is removed as well. Rows with less fields than others are kept,
+ * since the CSVWriter does not end the last row and a short row is not
+ * necessarily incomplete. Note: a row that has been cut within an unquoted
+ * field cannot be detected.
+ *
+ * State file layout (big endian): MAGIC, VERSION, long length, long row
+ * count, boolean ends with line break, long modification time of the file.
+ *
+ * @author Benjamin Petry
+ */
+final class CSVAppendScan
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static String EXTENSION = ".state";
+    final private static int MAGIC = 0x42504131; // "BPA1"
+    final private static int VERSION = 1;
+    final private static int STATE_SIZE = 33;
+    final private static int BUFFER_SIZE = 64 * 1024;
+    final private static CSVAppendScan EMPTY = new CSVAppendScan(0, 0, false);
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final long length;
+    private final long rowCount;
+    private final boolean endsWithLineBreak;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates the state of a file, e.g. when the file is closed.
+     *
+     * @param length the length of the file
+     * @param rowCount the number of rows
+     * @param endsWithLineBreak true if the file ends with a line break
+     */
+    public CSVAppendScan(long length, long rowCount, boolean endsWithLineBreak)
+    {
+        this.length = length;
+        this.rowCount = rowCount;
+        this.endsWithLineBreak = endsWithLineBreak;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the length of the intact part of the file. The file has to be
+     * truncated to this length before rows are appended.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the number of intact rows
+     */
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * @return true if the intact part ends with a line break, i.e. the next
+     * row must not be preceded by a line separator
+     */
+    public boolean endsWithLineBreak()
+    {
+        return endsWithLineBreak;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Saves the state next to the csv file (see getStateFile()). The state
+     * file is replaced atomically.
+     *
+     * @param csv the csv file. Its length has to be the length of the state.
+     * @throws IOException if the state could not be written
+     */
+    public void save(File csv) throws IOException
+    {
+        File f = getStateFile(csv);
+        File temp = new File(f.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(STATE_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(length).putLong(rowCount);
+            buffer.put((byte) (endsWithLineBreak ? 1 : 0));
+            buffer.putLong(csv.lastModified());
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Public Static Methods /////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param csv the csv file
+     * @return the sidecar file of the append state of the csv file (e.g.
+     * data.csv.state)
+     */
+    public static File getStateFile(File csv)
+    {
+        return new File(csv.getPath() + EXTENSION);
+    }
+
+    /**
+     * Loads the saved state of a csv file. The state can only be continued
+     * if the file has not been changed since it was saved or if it has grown
+     * (rows are only appended, the saved part is never changed).
+     *
+     * @param csv the csv file
+     * @return the state or null if there is no state that can be continued
+     * @throws IOException if the state file could not be read or is invalid
+     */
+    public static CSVAppendScan load(File csv) throws IOException
+    {
+        File f = getStateFile(csv);
+        if (!f.exists())
+        {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        if (buffer.remaining() != STATE_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION)
+        {
+            throw new IOException(f + " is no csv append state file.");
+        }
+        CSVAppendScan state = new CSVAppendScan(buffer.getLong(),
+                buffer.getLong(), buffer.get() != 0);
+        long lastModified = buffer.getLong();
+        long fileLength = csv.length();
+        boolean isUnchanged = fileLength == state.length
+                && csv.lastModified() == lastModified;
+        return (isUnchanged || fileLength > state.length) ? state : null;
+    }
+
+    /**
+     * Scans a csv file from the beginning.
+     *
+     * @param channel the channel of the file (the position is not changed)
+     * @param lineSeparator the encoded line separator
+     * @return the result of the scan
+     * @throws IOException if the file could not be read
+     */
+    public static CSVAppendScan scan(FileChannel channel, byte[] lineSeparator)
+            throws IOException
+    {
+        return scan(channel, lineSeparator, EMPTY);
+    }
+
+    /**
+     * Scans the part of a csv file that follows an intact part, e.g. the
+     * rows that have been appended after a state was saved.
+     *
+     * @param channel the channel of the file (the position is not changed)
+     * @param lineSeparator the encoded line separator
+     * @param from the intact part of the file (see load())
+     * @return the result of the scan
+     * @throws IOException if the file could not be read
+     */
+    public static CSVAppendScan scan(FileChannel channel, byte[] lineSeparator,
+            CSVAppendScan from) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = from.length;
+        // the last row of the intact part is continued if it has no line break
+        boolean isRowOpen = from.length > 0 && !from.endsWithLineBreak;
+        long rowStart = isRowOpen ? -1 : position;
+        long rows = isRowOpen ? from.rowCount - 1 : from.rowCount;
+        boolean inQuotes = false;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0)
+        {
+            byte[] bytes = buffer.array();
+            for (int n = 0; n < read; n++)
+            {
+                byte b = bytes[n];
+                if (b == '"')
+                {
+                    inQuotes = !inQuotes;
+                }
+                else if (b == '\n' && !inQuotes)
+                {
+                    rows++;
+                    rowStart = position + n + 1;
+                }
+            }
+            position += read;
+            buffer.clear();
+        }
+        if (position == rowStart)
+        {
+            return new CSVAppendScan(position, rows, position > 0);
+        }
+        long length = inQuotes ? position : position - cutLineSeparator(
+                channel, position, Math.max(rowStart, from.length), lineSeparator);
+        if (length == rowStart)
+        {
+            return new CSVAppendScan(length, rows, length > 0);
+        }
+        if (inQuotes)
+        {
+            return (rowStart < 0) ? from
+                    : new CSVAppendScan(rowStart, rows, rowStart > 0);
+        }
+        return new CSVAppendScan(length, rows + 1, false);
+    }
+
+    /**
+     * @param charset a charset
+     * @return true if the charset encodes the ASCII characters as single
+     * bytes that do not occur within other characters (e.g. UTF-8 or
+     * ISO-8859-1). Only then rows can be found by scanning bytes.
+     */
+    public static boolean isAsciiCompatible(Charset charset)
+    {
+        String controls = "\"\n\r,;|\t";
+        return (charset.equals(StandardCharsets.UTF_8)
+                || charset.newEncoder().maxBytesPerChar() == 1)
+                && Arrays.equals(controls.getBytes(charset),
+                        controls.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the length of the beginning of the line separator at the end of
+     * the file (e.g. "\r" of "\r\n") or 0 if the file does not end with a
+     * part of the line separator
+     */
+    private static int cutLineSeparator(FileChannel channel, long length,
+            long rowStart, byte[] lineSeparator) throws IOException
+    {
+        int tailLength = (int) Math.min(lineSeparator.length - 1, length - rowStart);
+        if (tailLength <= 0)
+        {
+            return 0;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(tailLength);
+        while (tail.hasRemaining()
+                && channel.read(tail, length - tailLength + tail.position()) > 0)
+        {
+        }
+        for (int k = tailLength; k > 0; k--)
+        {
+            boolean isPrefix = true;
+            for (int n = 0; n < k && isPrefix; n++)
+            {
+                isPrefix = tail.get(tailLength - k + n) == lineSeparator[n];
+            }
+            if (isPrefix)
+            {
+                return k;
+            }
+        }
+        return 0;
+    }
+}
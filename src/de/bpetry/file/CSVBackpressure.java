@@ -0,0 +1,20 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Describes what an AsyncCSVWriter does with a row if its ring buffer is full
+ *
+ * @author Benjamin Petry
+ */
+public enum CSVBackpressure
+{
+
+    BLOCK, // the producer waits until a slot is free
+    DROP_NEWEST, // the row is discarded
+    SPILL // the row is written synchronously into the spill file
+}
@@ -0,0 +1,146 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * CSV output that encodes characters into a reusable direct ByteBuffer and
+ * writes it into a channel. Both buffers are allocated once when the output is
+ * created.
+ *
+ * @author Benjamin Petry
+ */
+class CSVChannelOutput extends CSVOutput
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final CharBuffer charView;
+    private final ByteBuffer bytes;
+    private long bytesWritten = 0;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVChannelOutput(WritableByteChannel channel, Charset charset,
+            int bufferSize, CSVFlushPolicy flushPolicy, int flushThreshold)
+    {
+        super(bufferSize, flushPolicy, flushThreshold);
+        this.channel = channel;
+        this.encoder = charset.newEncoder().onMalformedInput(
+                CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+        this.charView = CharBuffer.wrap(chars);
+        this.bytes = ByteBuffer.allocateDirect(Math.max(bufferSize,
+                (int) Math.ceil(encoder.maxBytesPerChar()) * 4));
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten + bytes.position();
+    }
+
+    @Override
+    protected void drainChars() throws IOException
+    {
+        encode(false);
+    }
+
+    @Override
+    protected void flushBytes() throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining())
+        {
+            bytesWritten += channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    @Override
+    protected int getPendingBytes()
+    {
+        return bytes.position();
+    }
+
+    @Override
+    protected boolean syncTarget() throws IOException
+    {
+        if (channel instanceof FileChannel)
+        {
+            ((FileChannel) channel).force(false);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void closeTarget() throws IOException
+    {
+        try
+        {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow())
+            {
+                flushBytes();
+            }
+            flushBytes();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Encodes the buffered characters into the byte buffer. Whenever the byte
+     * buffer is full, it is written into the channel. A trailing high
+     * surrogate is kept for the next call unless the end of the input is
+     * reached.
+     *
+     * @param endOfInput true, if no more characters will follow
+     * @throws IOException if the bytes could not be written
+     */
+    private void encode(boolean endOfInput) throws IOException
+    {
+        charView.limit(charCount).position(0);
+        CoderResult result;
+        while ((result = encoder.encode(charView, bytes, endOfInput)).isOverflow())
+        {
+            flushBytes();
+        }
+        if (result.isError())
+        {
+            result.throwException();
+        }
+        int remaining = charView.remaining();
+        if (remaining > 0)
+        {
+            System.arraycopy(chars, charView.position(), chars, 0, remaining);
+        }
+        charCount = remaining;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads selected columns of a csv file into a ColumnTable. The values are
+ * parsed directly into primitive arrays without boxing. The type of a column
+ * is either given or inferred from the first rows of the file (the sample):
+ * INT if all values of the sample are ints, LONG if they are longs, DOUBLE if
+ * they are numbers and STRING otherwise. If a later value does not fit the
+ * inferred type, the column is widened (a column that is widened to STRING is
+ * read again, so its values keep their original text). Empty fields are
+ * stored as missing values.
+ * <pre>
+ * CSVColumnLoader loader = new CSVColumnLoader("data.csv");
+ * loader.addColumn("age");
+ * loader.addColumn("group", ColumnType.STRING);
+ * ColumnTable table = loader.load();
+ * if (table.getType(0) == ColumnType.INT)
+ * {
+ *     double meanAge = StatisticUtil.mean(table.getInts(0), table.getMissing(0));
+ * }
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class CSVColumnLoader
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_SAMPLE_SIZE = 1000;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private Charset charset = StandardCharsets.UTF_8;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private boolean hasHeader = true;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private final List<Object> selectedColumns = new ArrayList<>();
+    private final List<ColumnType> selectedTypes = new ArrayList<>();
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVColumnLoader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public CSVColumnLoader(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public boolean hasHeader()
+    {
+        return hasHeader;
+    }
+
+    /**
+     * @param hasHeader true, if the first row contains the names of the
+     * columns (default). Otherwise the columns are named by their index.
+     */
+    public void setHeader(boolean hasHeader)
+    {
+        this.hasHeader = hasHeader;
+    }
+
+    public int getSampleSize()
+    {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize the number of rows used to infer the column types
+     * (default: 1000)
+     */
+    public void setSampleSize(int sampleSize)
+    {
+        this.sampleSize = Math.max(sampleSize, 1);
+    }
+
+    /**
+     * @return the exception of the last failed load operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Selects a column whose type is inferred. If no column is selected, all
+     * columns are loaded.
+     *
+     * @param name the name of the column in the header
+     */
+    public void addColumn(String name)
+    {
+        addColumn(name, null);
+    }
+
+    /**
+     * @param name the name of the column in the header
+     * @param type the type of the column (null to infer it)
+     */
+    public void addColumn(String name, ColumnType type)
+    {
+        selectedColumns.add(name);
+        selectedTypes.add(type);
+    }
+
+    /**
+     * @param index the index of the column
+     */
+    public void addColumn(int index)
+    {
+        addColumn(index, null);
+    }
+
+    /**
+     * @param index the index of the column
+     * @param type the type of the column (null to infer it)
+     */
+    public void addColumn(int index, ColumnType type)
+    {
+        selectedColumns.add(index);
+        selectedTypes.add(type);
+    }
+
+    /**
+     * Loads the selected columns. The columns of the table have the order of
+     * the selection.
+     *
+     * @return the table or null if the file could not be read
+     * @throws IllegalArgumentException if a selected column does not exist
+     */
+    public ColumnTable load()
+    {
+        CSVReader reader = createReader();
+        if (!reader.open())
+        {
+            lastError = reader.getLastError();
+            return null;
+        }
+        int[] fields;
+        String[] names;
+        ColumnType[] types;
+        try
+        {
+            String[] header = hasHeader ? reader.readRow() : null;
+            fields = getSelectedFields(header, reader);
+            names = new String[fields.length];
+            for (int n = 0; n < fields.length; n++)
+            {
+                names[n] = (header != null && fields[n] < header.length)
+                        ? header[fields[n]] : Integer.toString(fields[n]);
+            }
+            types = inferTypes(reader, fields);
+        }
+        finally
+        {
+            reader.close();
+        }
+        if (reader.getLastError() != null)
+        {
+            lastError = reader.getLastError();
+            return null;
+        }
+        return readColumns(fields, names, types);
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private CSVReader createReader()
+    {
+        CSVReader reader = new CSVReader(file);
+        reader.setCharset(charset);
+        reader.setFieldSeperator(fieldSeperator);
+        return reader;
+    }
+
+    /**
+     * @return the indices of the selected fields. If no column has been
+     * selected, the fields of the header or the first row are selected.
+     */
+    private int[] getSelectedFields(String[] header, CSVReader reader)
+    {
+        if (selectedColumns.isEmpty())
+        {
+            int count = (header != null) ? header.length
+                    : (reader.next() ? reader.getFieldCount() : 0);
+            int[] fields = new int[count];
+            for (int n = 0; n < count; n++)
+            {
+                fields[n] = n;
+            }
+            return fields;
+        }
+        int[] fields = new int[selectedColumns.size()];
+        for (int n = 0; n < fields.length; n++)
+        {
+            Object column = selectedColumns.get(n);
+            if (column instanceof Integer)
+            {
+                fields[n] = (Integer) column;
+                continue;
+            }
+            fields[n] = (header != null) ? Arrays.asList(header).indexOf(column) : -1;
+            if (fields[n] < 0)
+            {
+                throw new IllegalArgumentException("The column " + column
+                        + " does not exist in " + file);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Determines the types of the columns that have not been given based on
+     * the sample. The reader may already be positioned on the first row.
+     */
+    private ColumnType[] inferTypes(CSVReader reader, int[] fields)
+    {
+        ColumnType[] types = new ColumnType[fields.length];
+        for (int n = 0; n < fields.length; n++)
+        {
+            ColumnType type = (n < selectedTypes.size()) ? selectedTypes.get(n) : null;
+            types[n] = (type != null) ? type : ColumnType.NULL;
+        }
+        boolean hasRow = reader.getRowNumber() >= (hasHeader ? 1 : 0) || reader.next();
+        for (int row = 0; row < sampleSize && hasRow; row++)
+        {
+            for (int n = 0; n < fields.length; n++)
+            {
+                if ((n >= selectedTypes.size() || selectedTypes.get(n) == null)
+                        && fields[n] < reader.getFieldCount()
+                        && !reader.isEmpty(fields[n]))
+                {
+                    types[n] = widen(types[n], typeOf(reader.getString(fields[n])));
+                }
+            }
+            hasRow = reader.next();
+        }
+        for (int n = 0; n < types.length; n++)
+        {
+            if (types[n] == ColumnType.NULL || types[n] == ColumnType.BOOLEAN)
+            {
+                types[n] = ColumnType.STRING;
+            }
+        }
+        return types;
+    }
+
+    private ColumnTable readColumns(int[] fields, String[] names,
+            ColumnType[] types)
+    {
+        ColumnTable.Column[] columns = new ColumnTable.Column[fields.length];
+        for (int n = 0; n < columns.length; n++)
+        {
+            columns[n] = new ColumnTable.Column(types[n]);
+        }
+        int rows = readRows(fields, columns);
+        if (rows < 0)
+        {
+            return null;
+        }
+        // numbers that have been widened to strings lost their original
+        // text (e.g. "007"), so these columns are read again as strings
+        ColumnTable.Column[] widened = new ColumnTable.Column[fields.length];
+        boolean isWidened = false;
+        for (int n = 0; n < columns.length; n++)
+        {
+            if (columns[n].isWidenedToString())
+            {
+                widened[n] = new ColumnTable.Column(ColumnType.STRING);
+                columns[n] = widened[n];
+                isWidened = true;
+            }
+        }
+        if (isWidened && readRows(fields, widened) < 0)
+        {
+            return null;
+        }
+        for (ColumnTable.Column column : columns)
+        {
+            column.trim();
+        }
+        return new ColumnTable(names, columns, rows);
+    }
+
+    /**
+     * Reads the values of the file into the columns.
+     *
+     * @param columns the columns of the fields (null for fields to skip)
+     * @return the number of rows or -1 if the file could not be read
+     */
+    private int readRows(int[] fields, ColumnTable.Column[] columns)
+    {
+        CSVReader reader = createReader();
+        if (!reader.open())
+        {
+            lastError = reader.getLastError();
+            return -1;
+        }
+        int rows = 0;
+        try
+        {
+            if (hasHeader)
+            {
+                reader.next();
+            }
+            while (reader.next())
+            {
+                for (int n = 0; n < fields.length; n++)
+                {
+                    if (columns[n] == null)
+                    {
+                        continue;
+                    }
+                    if (fields[n] >= reader.getFieldCount()
+                            || reader.isEmpty(fields[n]))
+                    {
+                        columns[n].addMissing();
+                    }
+                    else
+                    {
+                        columns[n].add(reader, fields[n]);
+                    }
+                }
+                rows++;
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        if (reader.getLastError() != null)
+        {
+            lastError = reader.getLastError();
+            return -1;
+        }
+        return rows;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static ColumnType typeOf(String value)
+    {
+        try
+        {
+            Integer.parseInt(value);
+            return ColumnType.INT;
+        }
+        catch (NumberFormatException ex)
+        {
+        }
+        try
+        {
+            Long.parseLong(value);
+            return ColumnType.LONG;
+        }
+        catch (NumberFormatException ex)
+        {
+        }
+        try
+        {
+            Double.parseDouble(value);
+            return ColumnType.DOUBLE;
+        }
+        catch (NumberFormatException ex)
+        {
+        }
+        return ColumnType.STRING;
+    }
+
+    /**
+     * @return the narrowest type that can store values of both types
+     */
+    private static ColumnType widen(ColumnType type1, ColumnType type2)
+    {
+        return (type1.ordinal() > type2.ordinal()) ? type1 : type2;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Escapes csv fields directly into char arrays. A field is surrounded with
+ * double quotes if it contains double quotes, the field- or line-separator or
+ * a line-break. Double quotes inside a field are doubled.
+ *
+ * @author Benjamin Petry
+ */
+final class CSVEscaper
+{
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    private CSVEscaper()
+    {
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////  Public Static Methods //////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param length the length of a field
+     * @return the maximum number of chars the escaped field can take
+     */
+    public static int maxEscapedLength(int length)
+    {
+        return 2 * length + 2;
+    }
+
+    /**
+     * Copies a field into a char array and escapes it in a single pass. The
+     * field is copied as it is while scanning it. Only if it turns out to need
+     * quotes, it is moved by one char to insert the opening quote.
+     *
+     * @param field the field to escape
+     * @param dest the array to write into. It must provide at least
+     * maxEscapedLength(field.length()) chars starting from pos.
+     * @param pos the position to start writing
+     * @param fieldSeparator the field separator
+     * @param lineSeparator the line separator
+     * @return the position after the escaped field
+     */
+    public static int escape(CharSequence field, char[] dest, int pos,
+            String fieldSeparator, String lineSeparator)
+    {
+        int length = field.length();
+        char fieldChar = firstChar(fieldSeparator);
+        char lineChar = firstChar(lineSeparator);
+        boolean needToEscape = fieldSeparator.isEmpty() || lineSeparator.isEmpty();
+        int p = pos;
+        for (int i = 0; i < length; i++)
+        {
+            char c = field.charAt(i);
+            dest[p++] = c;
+            if (c == '"')
+            {
+                dest[p++] = '"';
+                needToEscape = true;
+            }
+            else if (c == '\n' || (c == fieldChar && regionMatches(field, i,
+                    fieldSeparator)) || (c == lineChar && regionMatches(field,
+                    i, lineSeparator)))
+            {
+                needToEscape = true;
+            }
+        }
+        if (needToEscape)
+        {
+            System.arraycopy(dest, pos, dest, pos + 1, p - pos);
+            dest[pos] = '"';
+            p++;
+            dest[p++] = '"';
+        }
+        return p;
+    }
+
+    /**
+     * Checks whether a field needs to be surrounded with double quotes.
+     *
+     * @param field the field to check
+     * @param fieldSeparator the field separator
+     * @param lineSeparator the line separator
+     * @return true, if the field needs quotes
+     */
+    public static boolean needsQuotes(CharSequence field, String fieldSeparator,
+            String lineSeparator)
+    {
+        if (fieldSeparator.isEmpty() || lineSeparator.isEmpty())
+        {
+            return true;
+        }
+        char fieldChar = fieldSeparator.charAt(0);
+        char lineChar = lineSeparator.charAt(0);
+        int length = field.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = field.charAt(i);
+            if (c == '"' || c == '\n' || (c == fieldChar && regionMatches(field,
+                    i, fieldSeparator)) || (c == lineChar && regionMatches(field,
+                    i, lineSeparator)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static char firstChar(String s)
+    {
+        return s.isEmpty() ? '"' : s.charAt(0);
+    }
+
+    private static boolean regionMatches(CharSequence field, int offset,
+            String s)
+    {
+        int length = s.length();
+        if (length == 1)
+        {
+            return true;
+        }
+        if (offset + length > field.length())
+        {
+            return false;
+        }
+        for (int i = 1; i < length; i++)
+        {
+            if (field.charAt(offset + i) != s.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
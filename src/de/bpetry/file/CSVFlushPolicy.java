@@ -0,0 +1,21 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Describes when a CSVWriter pushes its buffered output to the underlying
+ * file.
+ *
+ * @author Benjamin Petry
+ */
+public enum CSVFlushPolicy
+{
+
+    ROW, // after every completed row
+    BYTES, // as soon as the flush threshold (in bytes) is reached
+    CLOSE // only if the buffer is full and when the writer is closed
+}
@@ -0,0 +1,436 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Hash table of the partial aggregates of the groups of a CSVAggregator. The
+ * table uses open addressing with linear probing and stores everything in
+ * primitive arrays: the keys of all groups in one char array and the
+ * aggregates in one array per statistic, indexed by the number of the group.
+ * A row therefore does not create any objects.
+ *
+ * The key fields are passed like the rows of a batch: the end of each field
+ * in an int array, the start of a field is the end of the previous one.
+ *
+ * @author Benjamin Petry
+ */
+final class CSVGroupTable
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final private static int INITIAL_CAPACITY = 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final int keyCount;
+    private final int valueCount;
+
+    // slot -> group + 1 (0 = empty slot)
+    private int[] slots = new int[2 * INITIAL_CAPACITY];
+    private int groupCount = 0;
+
+    // group -> key
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] keyEnds;
+    private char[] keyChars = new char[16 * INITIAL_CAPACITY];
+    private int charCount = 0;
+
+    // group -> aggregates (group * valueCount + value)
+    private long[] rows = new long[INITIAL_CAPACITY];
+    private long[] counts;
+    private double[] sums;
+    private double[] mins;
+    private double[] maxs;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param keyCount the number of key fields
+     * @param valueCount the number of aggregated value columns
+     */
+    public CSVGroupTable(int keyCount, int valueCount)
+    {
+        this.keyCount = keyCount;
+        this.valueCount = valueCount;
+        keyEnds = new int[Math.max(keyCount, 1) * INITIAL_CAPACITY];
+        counts = new long[Math.max(valueCount, 1) * INITIAL_CAPACITY];
+        sums = new double[counts.length];
+        mins = new double[counts.length];
+        maxs = new double[counts.length];
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public int getGroupCount()
+    {
+        return groupCount;
+    }
+
+    public int getHash(int group)
+    {
+        return hashes[group];
+    }
+
+    public long getRows(int group)
+    {
+        return rows[group];
+    }
+
+    public long getCount(int group, int value)
+    {
+        return counts[group * valueCount + value];
+    }
+
+    public double getSum(int group, int value)
+    {
+        return sums[group * valueCount + value];
+    }
+
+    public double getMin(int group, int value)
+    {
+        return mins[group * valueCount + value];
+    }
+
+    public double getMax(int group, int value)
+    {
+        return maxs[group * valueCount + value];
+    }
+
+    public char[] getKeyChars()
+    {
+        return keyChars;
+    }
+
+    /**
+     * @return the start of a key field of a group in the key chars
+     */
+    public int getKeyStart(int group, int field)
+    {
+        int index = group * keyCount + field;
+        return (index == 0) ? 0 : keyEnds[index - 1];
+    }
+
+    /**
+     * @return the end of a key field of a group in the key chars
+     */
+    public int getKeyEnd(int group, int field)
+    {
+        return keyEnds[group * keyCount + field];
+    }
+
+    /**
+     * @return the estimated number of bytes the groups take in memory (the
+     * memory is kept by clear(), so the estimate is based on the groups)
+     */
+    public long estimateSize()
+    {
+        return groupCount * (20L + 4L * keyCount + 32L * valueCount)
+                + 2L * charCount;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Finds the group of a key or adds a new group.
+     *
+     * @param hash the hash of the key (see hash())
+     * @param chars the chars of the key fields
+     * @param ends the ends of the key fields
+     * @param offset the index of the end of the first key field
+     * @param start the start of the first key field
+     * @return the number of the group
+     */
+    public int group(int hash, char[] chars, int[] ends, int offset, int start)
+    {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        int group;
+        while ((group = slots[slot] - 1) >= 0)
+        {
+            if (hashes[group] == hash && equals(group, chars, ends, offset,
+                    start))
+            {
+                return group;
+            }
+            slot = (slot + 1) & mask;
+        }
+        group = addGroup(hash, chars, ends, offset, start);
+        slots[slot] = group + 1;
+        if (2 * groupCount > slots.length)
+        {
+            rehash(2 * slots.length);
+        }
+        return group;
+    }
+
+    public void addRow(int group)
+    {
+        rows[group]++;
+    }
+
+    /**
+     * Adds a value to the aggregates of a group.
+     *
+     * @param group the number of the group
+     * @param value the index of the value column
+     * @param x the value (NaN values are ignored)
+     */
+    public void addValue(int group, int value, double x)
+    {
+        if (Double.isNaN(x))
+        {
+            return;
+        }
+        int index = group * valueCount + value;
+        counts[index]++;
+        sums[index] += x;
+        mins[index] = Math.min(mins[index], x);
+        maxs[index] = Math.max(maxs[index], x);
+    }
+
+    /**
+     * Merges the groups of another table into this table.
+     *
+     * @param other the table with the same key and value columns
+     */
+    public void merge(CSVGroupTable other)
+    {
+        for (int n = 0; n < other.groupCount; n++)
+        {
+            int offset = n * keyCount;
+            int group = group(other.hashes[n], other.keyChars, other.keyEnds,
+                    offset, other.getKeyStart(n, 0));
+            rows[group] += other.rows[n];
+            for (int v = 0; v < valueCount; v++)
+            {
+                int index = n * valueCount + v;
+                mergeValue(group * valueCount + v, other.counts[index],
+                        other.sums[index], other.mins[index],
+                        other.maxs[index]);
+            }
+        }
+    }
+
+    /**
+     * Writes a group into a spill file.
+     *
+     * @param group the number of the group
+     * @param out the spill file
+     * @throws IOException if the group could not be written
+     */
+    public void write(int group, DataOutput out) throws IOException
+    {
+        out.writeInt(hashes[group]);
+        for (int k = 0; k < keyCount; k++)
+        {
+            int start = getKeyStart(group, k);
+            int end = getKeyEnd(group, k);
+            out.writeInt(end - start);
+            for (int n = start; n < end; n++)
+            {
+                out.writeChar(keyChars[n]);
+            }
+        }
+        out.writeLong(rows[group]);
+        for (int v = 0; v < valueCount; v++)
+        {
+            int index = group * valueCount + v;
+            out.writeLong(counts[index]);
+            out.writeDouble(sums[index]);
+            out.writeDouble(mins[index]);
+            out.writeDouble(maxs[index]);
+        }
+    }
+
+    /**
+     * Reads a group from a spill file and merges it into this table.
+     *
+     * @param in the spill file
+     * @param buffer a buffer for the key chars (may be replaced by a larger
+     * one)
+     * @param ends a buffer for the ends of the key fields
+     * @return the buffer for the key chars
+     * @throws IOException if the group could not be read
+     */
+    public char[] read(DataInput in, char[] buffer, int[] ends)
+            throws IOException
+    {
+        int hash = in.readInt();
+        int length = 0;
+        for (int k = 0; k < keyCount; k++)
+        {
+            int fieldLength = in.readInt();
+            if (length + fieldLength > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, 2 * (length + fieldLength));
+            }
+            for (int n = 0; n < fieldLength; n++)
+            {
+                buffer[length++] = in.readChar();
+            }
+            ends[k] = length;
+        }
+        int group = group(hash, buffer, ends, 0, 0);
+        rows[group] += in.readLong();
+        for (int v = 0; v < valueCount; v++)
+        {
+            mergeValue(group * valueCount + v, in.readLong(), in.readDouble(),
+                    in.readDouble(), in.readDouble());
+        }
+        return buffer;
+    }
+
+    /**
+     * Removes all groups but keeps the memory for the next groups.
+     */
+    public void clear()
+    {
+        Arrays.fill(slots, 0);
+        groupCount = 0;
+        charCount = 0;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private boolean equals(int group, char[] chars, int[] ends, int offset,
+            int start)
+    {
+        int groupOffset = group * keyCount;
+        int groupStart = getKeyStart(group, 0);
+        for (int k = 0; k < keyCount; k++)
+        {
+            int end = ends[offset + k];
+            int groupEnd = keyEnds[groupOffset + k];
+            if (end - start != groupEnd - groupStart)
+            {
+                return false;
+            }
+            for (; start < end; start++, groupStart++)
+            {
+                if (chars[start] != keyChars[groupStart])
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int addGroup(int hash, char[] chars, int[] ends, int offset,
+            int start)
+    {
+        int group = groupCount++;
+        if (group == hashes.length)
+        {
+            int capacity = 2 * hashes.length;
+            hashes = Arrays.copyOf(hashes, capacity);
+            keyEnds = Arrays.copyOf(keyEnds, Math.max(keyCount, 1) * capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            int valueCapacity = Math.max(valueCount, 1) * capacity;
+            counts = Arrays.copyOf(counts, valueCapacity);
+            sums = Arrays.copyOf(sums, valueCapacity);
+            mins = Arrays.copyOf(mins, valueCapacity);
+            maxs = Arrays.copyOf(maxs, valueCapacity);
+        }
+        int length = (keyCount == 0) ? 0 : ends[offset + keyCount - 1] - start;
+        if (charCount + length > keyChars.length)
+        {
+            keyChars = Arrays.copyOf(keyChars,
+                    Math.max(2 * keyChars.length, charCount + length));
+        }
+        System.arraycopy(chars, start, keyChars, charCount, length);
+        for (int k = 0; k < keyCount; k++)
+        {
+            keyEnds[group * keyCount + k] = charCount + ends[offset + k] - start;
+        }
+        charCount += length;
+        hashes[group] = hash;
+        rows[group] = 0;
+        for (int v = 0; v < valueCount; v++)
+        {
+            int index = group * valueCount + v;
+            counts[index] = 0;
+            sums[index] = 0;
+            mins[index] = Double.POSITIVE_INFINITY;
+            maxs[index] = Double.NEGATIVE_INFINITY;
+        }
+        return group;
+    }
+
+    private void mergeValue(int index, long count, double sum, double min,
+            double max)
+    {
+        counts[index] += count;
+        sums[index] += sum;
+        mins[index] = Math.min(mins[index], min);
+        maxs[index] = Math.max(maxs[index], max);
+    }
+
+    private void rehash(int capacity)
+    {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int group = 0; group < groupCount; group++)
+        {
+            int slot = hashes[group] & mask;
+            while (slots[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group + 1;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Public Static Methods /////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Hashes the key fields of a row. The bits are mixed, so the high bits
+     * can be used to partition the groups and the low bits to find the slot.
+     *
+     * @param keyCount the number of key fields
+     * @param chars the chars of the key fields
+     * @param ends the ends of the key fields
+     * @param offset the index of the end of the first key field
+     * @param start the start of the first key field
+     * @return the hash
+     */
+    public static int hash(int keyCount, char[] chars, int[] ends, int offset,
+            int start)
+    {
+        int h = 1;
+        for (int k = 0; k < keyCount; k++)
+        {
+            int end = ends[offset + k];
+            for (int n = start; n < end; n++)
+            {
+                h = 31 * h + chars[n];
+            }
+            h = 31 * h + (end - start);
+            start = end;
+        }
+        // finalizer of MurmurHash3
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.IOException;
+
+/**
+ * Buffered character output of a CSVWriter. Characters are collected in a
+ * reusable char buffer and handed to the concrete output in large chunks.
+ *
+ * @author Benjamin Petry
+ */
+abstract class CSVOutput
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVFlushPolicy flushPolicy;
+    private final int flushThreshold;
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////  Protected Variables //////////////////////////
+    //-------------------------------------------------------------------------
+    protected char[] chars;
+    protected int charCount = 0;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    protected CSVOutput(int bufferSize, CSVFlushPolicy flushPolicy,
+            int flushThreshold)
+    {
+        this.chars = new char[Math.max(bufferSize, 16)];
+        this.flushPolicy = flushPolicy;
+        this.flushThreshold = flushThreshold;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public void write(String s) throws IOException
+    {
+        int length = s.length();
+        int offset = 0;
+        while (offset < length)
+        {
+            if (charCount == chars.length)
+            {
+                drainChars();
+            }
+            int n = Math.min(length - offset, chars.length - charCount);
+            s.getChars(offset, offset + n, chars, charCount);
+            charCount += n;
+            offset += n;
+        }
+        checkFlushThreshold();
+    }
+
+    /**
+     * Escapes a field directly into the char buffer. Fields that do not fit
+     * into the buffer are written in chunks.
+     *
+     * @param field the field to write
+     * @param fieldSeparator the field separator used for escaping
+     * @param lineSeparator the line separator used for escaping
+     * @param isStartOfFile true, if the field is the first content of the file.
+     * In that case an apostrophe is added if the field starts with "ID" to make
+     * it compatible with Excel.
+     * @return the number of chars written
+     * @throws IOException if the buffer could not be drained
+     */
+    public int writeField(CharSequence field, String fieldSeparator,
+            String lineSeparator, boolean isStartOfFile) throws IOException
+    {
+        int maxLength = CSVEscaper.maxEscapedLength(field.length()) + 1;
+        if (chars.length - charCount < maxLength)
+        {
+            drainChars();
+        }
+        int written;
+        if (chars.length - charCount >= maxLength)
+        {
+            int start = charCount;
+            charCount = CSVEscaper.escape(field, chars, start, fieldSeparator,
+                    lineSeparator);
+            if (isStartOfFile && charCount - start >= 2 && chars[start] == 'I' && chars[start + 1] == 'D')
+            {
+                System.arraycopy(chars, start, chars, start + 1,
+                        charCount - start);
+                chars[start] = '\'';
+                charCount++;
+            }
+            written = charCount - start;
+        }
+        else
+        {
+            written = writeLargeField(field, fieldSeparator, lineSeparator,
+                    isStartOfFile);
+        }
+        checkFlushThreshold();
+        return written;
+    }
+
+    /**
+     * Is called after a row has been completed and applies the flush policy.
+     *
+     * @throws IOException if the output could not be flushed
+     */
+    public void endRow() throws IOException
+    {
+        if (flushPolicy == CSVFlushPolicy.ROW)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Pushes all buffered characters and bytes to the underlying file.
+     *
+     * @throws IOException if the output could not be written
+     */
+    public void flush() throws IOException
+    {
+        drainChars();
+        flushBytes();
+    }
+
+    /**
+     * Flushes the output and forces the written bytes onto the storage
+     * device.
+     *
+     * @return false if the output cannot be forced (it is flushed anyway)
+     * @throws IOException if the output could not be written or forced
+     */
+    public boolean sync() throws IOException
+    {
+        flush();
+        return syncTarget();
+    }
+
+    /**
+     * Flushes and closes the output. The underlying file is closed even if
+     * flushing failed.
+     *
+     * @throws IOException if the output could not be flushed or closed
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closeTarget();
+        }
+    }
+
+    /**
+     * Encodes all buffered characters and counts the bytes.
+     *
+     * @return the exact number of bytes written into the file including the
+     * bytes that are still buffered (see getBytesWritten())
+     * @throws IOException if the byte buffer had to be written and failed
+     */
+    public long countBytes() throws IOException
+    {
+        drainChars();
+        return getBytesWritten();
+    }
+
+    /**
+     * @return the number of encoded bytes so far, without the characters that
+     * are not encoded yet. Outputs that cannot count encoded bytes return the
+     * number of chars instead.
+     */
+    public abstract long getBytesWritten();
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private void checkFlushThreshold() throws IOException
+    {
+        if (flushPolicy == CSVFlushPolicy.BYTES && getPendingBytes() + charCount >= flushThreshold)
+        {
+            drainChars();
+            if (getPendingBytes() >= flushThreshold)
+            {
+                flush();
+            }
+        }
+    }
+
+    private int writeLargeField(CharSequence field, String fieldSeparator,
+            String lineSeparator, boolean isStartOfFile) throws IOException
+    {
+        boolean needToEscape = CSVEscaper.needsQuotes(field, fieldSeparator,
+                lineSeparator);
+        int written = 0;
+        if (needToEscape)
+        {
+            written += put('"');
+        }
+        else if (isStartOfFile && field.length() >= 2 && field.charAt(0) == 'I' && field.charAt(1) == 'D')
+        {
+            written += put('\'');
+        }
+        int length = field.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = field.charAt(i);
+            written += put(c);
+            if (c == '"')
+            {
+                written += put('"');
+            }
+        }
+        if (needToEscape)
+        {
+            written += put('"');
+        }
+        return written;
+    }
+
+    private int put(char c) throws IOException
+    {
+        if (charCount == chars.length)
+        {
+            drainChars();
+        }
+        chars[charCount++] = c;
+        return 1;
+    }
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Protected Methods ///////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Hands all buffered characters to the concrete output and empties the
+     * char buffer.
+     *
+     * @throws IOException if the characters could not be written
+     */
+    protected abstract void drainChars() throws IOException;
+
+    /**
+     * Writes all encoded but not yet written bytes into the file.
+     *
+     * @throws IOException if the bytes could not be written
+     */
+    protected abstract void flushBytes() throws IOException;
+
+    /**
+     * @return the number of encoded bytes that are not written yet
+     */
+    protected abstract int getPendingBytes();
+
+    /**
+     * Forces the written bytes onto the storage device.
+     *
+     * @return false if the target does not support this
+     * @throws IOException if the bytes could not be forced
+     */
+    protected abstract boolean syncTarget() throws IOException;
+
+    protected abstract void closeTarget() throws IOException;
+}
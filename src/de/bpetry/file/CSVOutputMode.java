@@ -0,0 +1,19 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Describes how a CSVWriter writes into its file
+ *
+ * @author Benjamin Petry
+ */
+public enum CSVOutputMode
+{
+
+    WRITER, // java.io.FileWriter using the platform charset
+    CHANNEL // java.nio FileChannel with a direct buffer and explicit charset
+}
@@ -0,0 +1,520 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Streams the rows of a CSVReader through a chain of stages into a
+ * CSVWriter. The stages (filter, map, project and derive) must be stateless.
+ * They are fused and applied to batches of rows on a pool of worker threads,
+ * while the source is read by the calling thread and the sink is written by a
+ * writer thread. The batches are queued in a bounded queue in the order of
+ * the source, so the output keeps the order of the input and the memory does
+ * not depend on the size of the file.
+ * <pre>
+ * CSVPipeline pipeline = new CSVPipeline(new CSVReader("in.csv"),
+ *         new CSVWriter("out.csv"));
+ * pipeline.filter(row -&gt; !row[2].equals(""))
+ *         .derive("total", row -&gt; Double.parseDouble((String) row[1]) * 2)
+ *         .project(0, 3);
+ * pipeline.run();
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class CSVPipeline
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_BATCH_SIZE = 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVReader source;
+    private final CSVWriter sink;
+    private final List<Stage> stages = new ArrayList<>();
+    private boolean hasHeader = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile Exception failure = null;
+    private long rowsRead = 0;
+    private volatile long rowsWritten = 0;
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates a pipeline. The reader and the writer are opened and closed by
+     * run().
+     *
+     * @param source the reader of the input
+     * @param sink the writer of the output
+     */
+    public CSVPipeline(CSVReader source, CSVWriter sink)
+    {
+        this.source = source;
+        this.sink = sink;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean hasHeader()
+    {
+        return hasHeader;
+    }
+
+    /**
+     * @param hasHeader true, if the first row contains the names of the
+     * columns (default). The header is only passed through the project and
+     * derive stages.
+     */
+    public void setHeader(boolean hasHeader)
+    {
+        this.hasHeader = hasHeader;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of rows that are passed through the stages
+     * as one task (default: 1024)
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the number of threads running the stages (default:
+     * number of available processors). At most two batches per thread are
+     * held in memory.
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * @return the number of rows (without header) read by the last call of
+     * run()
+     */
+    public long getRowsRead()
+    {
+        return rowsRead;
+    }
+
+    /**
+     * @return the number of rows (without header) written by the last call
+     * of run()
+     */
+    public long getRowsWritten()
+    {
+        return rowsWritten;
+    }
+
+    /**
+     * @return the exception of the last failed run or null if no run has
+     * failed yet. Exceptions thrown by stages are wrapped into an
+     * IOException.
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Adds a stage that drops all rows that do not match the predicate. The
+     * fields of rows of the source are Strings.
+     *
+     * @param predicate returns true for the rows to keep
+     * @return this pipeline
+     */
+    public CSVPipeline filter(Predicate<Object[]> predicate)
+    {
+        stages.add(new Stage(null)
+        {
+            @Override
+            public Object[] apply(Object[] row)
+            {
+                return predicate.test(row) ? row : null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a stage that replaces every row. The row passed to the function
+     * may be modified and returned.
+     *
+     * @param function returns the new row or null to drop the row
+     * @return this pipeline
+     */
+    public CSVPipeline map(Function<Object[], Object[]> function)
+    {
+        stages.add(new Stage(null)
+        {
+            @Override
+            public Object[] apply(Object[] row)
+            {
+                return function.apply(row);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a stage that keeps the given columns in the given order. Missing
+     * columns are empty.
+     *
+     * @param columns the indices of the columns
+     * @return this pipeline
+     */
+    public CSVPipeline project(int... columns)
+    {
+        int[] indices = columns.clone();
+        Stage stage = new Stage(null)
+        {
+            @Override
+            public Object[] apply(Object[] row)
+            {
+                Object[] result = new Object[indices.length];
+                for (int n = 0; n < indices.length; n++)
+                {
+                    result[n] = (indices[n] < row.length) ? row[indices[n]] : "";
+                }
+                return result;
+            }
+        };
+        stage.appliesToHeader = true;
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Adds a stage that appends a column computed from the row.
+     *
+     * @param name the name of the column in the header
+     * @param function computes the value of the column
+     * @return this pipeline
+     */
+    public CSVPipeline derive(String name, Function<Object[], Object> function)
+    {
+        stages.add(new Stage(name)
+        {
+            @Override
+            public Object[] apply(Object[] row)
+            {
+                Object[] result = Arrays.copyOf(row, row.length + 1,
+                        Object[].class);
+                result[row.length] = function.apply(row);
+                return result;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Streams all rows of the source through the stages into the sink.
+     *
+     * @return true if all rows have been read, transformed and written
+     */
+    public boolean run()
+    {
+        failure = null;
+        rowsRead = 0;
+        rowsWritten = 0;
+        IOException previousSourceError = source.getLastError();
+        if (!source.open())
+        {
+            lastError = source.getLastError();
+            return false;
+        }
+        if (!sink.open())
+        {
+            lastError = sink.getLastError();
+            source.close();
+            return false;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        BlockingQueue<Future<List<Object[]>>> batches
+                = new ArrayBlockingQueue<>(2 * parallelism);
+        Thread writer = new Thread(() -> writeBatches(batches),
+                "CSVPipeline-Writer");
+        writer.start();
+        try
+        {
+            if (hasHeader && source.next())
+            {
+                check(sink.println(transformHeader(readRow())));
+            }
+            List<Object[]> batch = new ArrayList<>(batchSize);
+            while (failure == null && source.next())
+            {
+                batch.add(readRow());
+                rowsRead++;
+                if (batch.size() == batchSize)
+                {
+                    List<Object[]> rows = batch;
+                    batches.put(workers.submit(() -> transform(rows)));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty() && failure == null)
+            {
+                List<Object[]> rows = batch;
+                batches.put(workers.submit(() -> transform(rows)));
+            }
+            if (source.getLastError() != previousSourceError)
+            {
+                fail(source.getLastError());
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            fail(ex);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            fail(ex);
+        }
+        finally
+        {
+            // the end of the batches
+            putUninterruptibly(batches, CompletableFuture.completedFuture(null));
+            joinUninterruptibly(writer);
+            workers.shutdownNow();
+            source.close();
+            if (!sink.close() && failure == null)
+            {
+                fail(sink.getLastError());
+            }
+        }
+        if (failure != null)
+        {
+            lastError = (failure instanceof IOException) ? (IOException) failure
+                    : new IOException("Could not transform csv rows", failure);
+            Log.error("Could not run csv pipeline", lastError);
+            return false;
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the fields of the current row of the source (Strings in an
+     * Object array, so stages can store other objects in it)
+     */
+    private Object[] readRow()
+    {
+        Object[] row = new Object[source.getFieldCount()];
+        for (int n = 0; n < row.length; n++)
+        {
+            row[n] = source.getString(n);
+        }
+        return row;
+    }
+
+    /**
+     * Applies all stages to a batch of rows.
+     */
+    private List<Object[]> transform(List<Object[]> rows)
+    {
+        int count = 0;
+        for (int n = 0; n < rows.size(); n++)
+        {
+            Object[] row = rows.get(n);
+            for (int s = 0; s < stages.size() && row != null; s++)
+            {
+                row = stages.get(s).apply(row);
+            }
+            if (row != null)
+            {
+                rows.set(count++, row);
+            }
+        }
+        return rows.subList(0, count);
+    }
+
+    private Object[] transformHeader(Object[] header)
+    {
+        for (Stage stage : stages)
+        {
+            if (stage.appliesToHeader)
+            {
+                header = stage.apply(header);
+            }
+            else if (stage.name != null)
+            {
+                header = Arrays.copyOf(header, header.length + 1,
+                        Object[].class);
+                header[header.length - 1] = stage.name;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Main loop of the writer thread. Writes the batches in the order of the
+     * queue until the end of the batches. After a failure (including
+     * unchecked exceptions of the sink, e.g. a value whose toString() throws)
+     * the remaining batches are discarded, so the reader is never blocked.
+     */
+    private void writeBatches(BlockingQueue<Future<List<Object[]>>> batches)
+    {
+        while (true)
+        {
+            try
+            {
+                List<Object[]> rows = batches.take().get();
+                if (rows == null)
+                {
+                    return;
+                }
+                for (int n = 0; n < rows.size() && failure == null; n++)
+                {
+                    check(sink.println(rows.get(n)));
+                    rowsWritten++;
+                }
+            }
+            catch (ExecutionException ex)
+            {
+                fail((ex.getCause() instanceof Exception)
+                        ? (Exception) ex.getCause() : ex);
+            }
+            catch (IOException | InterruptedException | RuntimeException ex)
+            {
+                fail(ex);
+            }
+            catch (Error ex)
+            {
+                fail(new IOException("Could not write csv rows", ex));
+            }
+        }
+    }
+
+    private void check(boolean result) throws IOException
+    {
+        if (!result)
+        {
+            throw (sink.getLastError() != null) ? sink.getLastError()
+                    : new IOException("Could not write csv file");
+        }
+    }
+
+    /**
+     * Remembers the first failure.
+     */
+    private synchronized void fail(Exception ex)
+    {
+        if (failure == null)
+        {
+            failure = ex;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                queue.put(item);
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread)
+    {
+        boolean interrupted = false;
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * A stateless transformation of a row.
+     */
+    private abstract static class Stage
+    {
+
+        // the name of the column appended by the stage or null
+        private final String name;
+        private boolean appliesToHeader = false;
+
+        public Stage(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @param row the row
+         * @return the transformed row or null to drop the row
+         */
+        public abstract Object[] apply(Object[] row);
+    }
+}
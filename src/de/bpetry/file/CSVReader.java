@@ -0,0 +1,684 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads csv files written by the CSVWriter. Fields that are enclosed in quotes
+ * may contain separators, line breaks and doubled quotes (""). Rows end with
+ * "\n" or "\r\n". The apostrophe that the CSVWriter adds in front of a first
+ * field starting with "ID" is removed again.
+ *
+ * The rows are read one by one with a cursor:
+ * <pre>
+ * CSVReader reader = new CSVReader("data.csv");
+ * reader.open();
+ * while (reader.next())
+ * {
+ *     String name = reader.getString(0);
+ *     int age = reader.getInt(1);
+ * }
+ * reader.close();
+ * </pre> The fields of the current row are stored in a buffer that is reused
+ * for the next row. Therefore, the CharSequences returned by getField() are
+ * only valid until next() is called.
+ *
+ * @author Benjamin Petry
+ */
+public class CSVReader
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private File file;
+    private InputStream source = null;
+    private Reader reader = null;
+    private Charset charset = StandardCharsets.UTF_8;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private IOException lastError = null;
+    private boolean isStartOfFile = true;
+
+    // input buffer
+    private char[] buffer = null;
+    private int position = 0;
+    private int limit = 0;
+    private boolean isEndOfFile = false;
+
+    // current row
+    private char[] rowChars = new char[256];
+    private int rowLength = 0;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldCount = 0;
+    private long rowNumber = -1;
+    private FieldView[] views = new FieldView[0];
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVReader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public CSVReader(File f)
+    {
+        file = f;
+    }
+
+    /**
+     * Creates a reader that reads from a stream. The stream is decoded with
+     * the charset of the reader and closed by close(), therefore the reader
+     * can only be opened once.
+     *
+     * @param is the stream to read from
+     */
+    public CSVReader(InputStream is)
+    {
+        source = is;
+    }
+
+    /**
+     * Creates a reader that reads from a character stream. The stream is
+     * closed by close(), therefore the reader can only be opened once.
+     *
+     * @param r the character stream to read from
+     */
+    public CSVReader(Reader r)
+    {
+        reader = r;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * @param charset the charset of files and streams (default: UTF-8). Takes
+     * effect on the next call of open().
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of chars read at once (default: 64K).
+     * Takes effect on the next call of open().
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the exception of the last failed open, read or close operation
+     * or null if no operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return the number of the current row starting with 0 (-1 before the
+     * first call of next())
+     */
+    public long getRowNumber()
+    {
+        return rowNumber;
+    }
+
+    /**
+     * @return the number of fields of the current row
+     */
+    public int getFieldCount()
+    {
+        return fieldCount;
+    }
+
+    /**
+     * @param isStartOfFile false, if the input does not start at the
+     * beginning of a csv file (e.g. a chunk of a file). In that case, a
+     * leading apostrophe is not removed.
+     */
+    void setStartOfFile(boolean isStartOfFile)
+    {
+        this.isStartOfFile = isStartOfFile;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean open()
+    {
+        if (file != null)
+        {
+            close();
+        }
+        try
+        {
+            if (file != null)
+            {
+                reader = new InputStreamReader(new FileInputStream(file), charset);
+            }
+            else if (source != null)
+            {
+                reader = new InputStreamReader(source, charset);
+                source = null;
+            }
+            else if (reader == null)
+            {
+                throw new IOException("The csv stream has already been closed.");
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open csv file for reading", ex);
+            reader = null;
+            return false;
+        }
+        if (buffer == null || buffer.length != Math.max(bufferSize, 16))
+        {
+            buffer = new char[Math.max(bufferSize, 16)];
+        }
+        position = 0;
+        limit = 0;
+        isEndOfFile = false;
+        rowLength = 0;
+        fieldCount = 0;
+        rowNumber = -1;
+        return true;
+    }
+
+    public boolean close()
+    {
+        if (reader != null)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (IOException ex)
+            {
+                lastError = ex;
+                Log.error("Could not close csv file", ex);
+                return false;
+            }
+            finally
+            {
+                reader = null;
+                fieldCount = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return false if there are no more rows or the file could not be read
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean next()
+    {
+        if (reader == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+        rowLength = 0;
+        fieldCount = 0;
+        try
+        {
+            if (!ensure(1))
+            {
+                return false;
+            }
+            while (readField())
+            {
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not read from csv file", ex);
+            fieldCount = 0;
+            isEndOfFile = true;
+            return false;
+        }
+        rowNumber++;
+        return true;
+    }
+
+    /**
+     * Reads the next row and returns its fields, e.g. to read the header.
+     *
+     * @return the fields of the row or null if there are no more rows
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public String[] readRow()
+    {
+        return next() ? getRow() : null;
+    }
+
+    /**
+     * @return the fields of the current row
+     */
+    public String[] getRow()
+    {
+        String[] row = new String[fieldCount];
+        for (int n = 0; n < fieldCount; n++)
+        {
+            row[n] = getString(n);
+        }
+        return row;
+    }
+
+    /**
+     * Returns a view of a field of the current row without copying it. The
+     * view is only valid until next() is called.
+     *
+     * @param col the index of the field
+     * @return the field
+     */
+    public CharSequence getField(int col)
+    {
+        checkField(col);
+        if (views.length <= col)
+        {
+            int length = views.length;
+            views = Arrays.copyOf(views, Math.max(col + 1, length * 2));
+            for (int n = length; n < views.length; n++)
+            {
+                views[n] = new FieldView(n);
+            }
+        }
+        return views[col];
+    }
+
+    public String getString(int col)
+    {
+        checkField(col);
+        return new String(rowChars, fieldStarts[col],
+                fieldEnds[col] - fieldStarts[col]);
+    }
+
+    public boolean isEmpty(int col)
+    {
+        checkField(col);
+        return fieldStarts[col] == fieldEnds[col];
+    }
+
+    /**
+     * @param col the index of the field
+     * @return the field as int
+     * @throws NumberFormatException if the field is not an integer
+     */
+    public int getInt(int col)
+    {
+        long value = getLong(col);
+        if (value != (int) value)
+        {
+            throw new NumberFormatException("Value out of int range: "
+                    + getString(col));
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the field directly from the row buffer.
+     *
+     * @param col the index of the field
+     * @return the field as long
+     * @throws NumberFormatException if the field is not an integer
+     */
+    public long getLong(int col)
+    {
+        checkField(col);
+        int pos = fieldStarts[col];
+        int end = fieldEnds[col];
+        boolean negative = false;
+        if (pos < end && (rowChars[pos] == '-' || rowChars[pos] == '+'))
+        {
+            negative = rowChars[pos] == '-';
+            pos++;
+        }
+        if (pos == end)
+        {
+            throw new NumberFormatException("For input string: \""
+                    + getString(col) + "\"");
+        }
+        long value = 0;
+        for (; pos < end; pos++)
+        {
+            int digit = rowChars[pos] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+            {
+                throw new NumberFormatException("For input string: \""
+                        + getString(col) + "\"");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative)
+        {
+            if (value == Long.MIN_VALUE)
+            {
+                throw new NumberFormatException("For input string: \""
+                        + getString(col) + "\"");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * @param col the index of the field
+     * @return the field as double
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDouble(int col)
+    {
+        return Double.parseDouble(getString(col));
+    }
+
+    /**
+     * @param col the index of the field
+     * @return true if the field is "true" (ignoring case)
+     */
+    public boolean getBoolean(int col)
+    {
+        checkField(col);
+        int start = fieldStarts[col];
+        if (fieldEnds[col] - start != 4)
+        {
+            return false;
+        }
+        return (rowChars[start] | 0x20) == 't'
+                && (rowChars[start + 1] | 0x20) == 'r'
+                && (rowChars[start + 2] | 0x20) == 'u'
+                && (rowChars[start + 3] | 0x20) == 'e';
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private void checkField(int col)
+    {
+        if (col < 0 || col >= fieldCount)
+        {
+            throw new IndexOutOfBoundsException("Field " + col
+                    + " does not exist (fields: " + fieldCount + ")");
+        }
+    }
+
+    /**
+     * Reads a field of the current row into the row buffer.
+     *
+     * @return true if another field follows in the same row
+     * @throws IOException if the input could not be read
+     */
+    private boolean readField() throws IOException
+    {
+        int start = rowLength;
+        boolean quoted = ensure(1) && buffer[position] == '"';
+        if (quoted)
+        {
+            position++;
+            readQuoted();
+        }
+        int unquotedStart = rowLength;
+        char first = fieldSeperator.isEmpty() ? '\n' : fieldSeperator.charAt(0);
+        boolean hasNext = false;
+        scan:
+        while (ensure(1))
+        {
+            for (int i = position; i < limit; i++)
+            {
+                char c = buffer[i];
+                if (c == '\n')
+                {
+                    append(position, i);
+                    position = i + 1;
+                    if (rowLength > unquotedStart && rowChars[rowLength - 1] == '\r')
+                    {
+                        rowLength--;
+                    }
+                    break scan;
+                }
+                if (c != first)
+                {
+                    continue;
+                }
+                if (i + fieldSeperator.length() > limit && !isEndOfFile)
+                {
+                    append(position, i);
+                    position = i;
+                    ensure(fieldSeperator.length());
+                    continue scan;
+                }
+                if (isSeparatorAt(i))
+                {
+                    append(position, i);
+                    position = i + fieldSeperator.length();
+                    hasNext = true;
+                    break scan;
+                }
+            }
+            append(position, limit);
+            position = limit;
+        }
+        if (isStartOfFile && start == 0 && rowNumber == -1 && !quoted && rowLength - start >= 3
+                && rowChars[start] == '\'' && rowChars[start + 1] == 'I'
+                && rowChars[start + 2] == 'D')
+        {
+            start++;
+        }
+        addField(start, rowLength);
+        return hasNext;
+    }
+
+    /**
+     * Reads the content of a quoted field up to the closing quote. Doubled
+     * quotes are replaced by a single quote.
+     *
+     * @throws IOException if the input could not be read
+     */
+    private void readQuoted() throws IOException
+    {
+        while (ensure(1))
+        {
+            int i = position;
+            while (i < limit && buffer[i] != '"')
+            {
+                i++;
+            }
+            append(position, i);
+            position = i;
+            if (i == limit)
+            {
+                continue;
+            }
+            position++;
+            if (!ensure(1) || buffer[position] != '"')
+            {
+                return;
+            }
+            append(position, position + 1);
+            position++;
+        }
+    }
+
+    /**
+     * Checks whether the field separator starts at the given position of the
+     * buffer.
+     */
+    private boolean isSeparatorAt(int i)
+    {
+        int length = fieldSeperator.length();
+        if (i + length > limit)
+        {
+            return false;
+        }
+        for (int n = 1; n < length; n++)
+        {
+            if (buffer[i + n] != fieldSeperator.charAt(n))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure that at least the given number of chars is available in the
+     * buffer. The remaining chars are moved to the beginning of the buffer if
+     * necessary.
+     *
+     * @param count the number of chars
+     * @return false if the end of the input has been reached before
+     * @throws IOException if the input could not be read
+     */
+    private boolean ensure(int count) throws IOException
+    {
+        while (limit - position < count)
+        {
+            if (isEndOfFile)
+            {
+                return false;
+            }
+            if (position > 0)
+            {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0)
+            {
+                isEndOfFile = true;
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    private void append(int from, int to)
+    {
+        int length = to - from;
+        if (length <= 0)
+        {
+            return;
+        }
+        if (rowLength + length > rowChars.length)
+        {
+            rowChars = Arrays.copyOf(rowChars, Math.max(rowChars.length * 2,
+                    rowLength + length));
+        }
+        System.arraycopy(buffer, from, rowChars, rowLength, length);
+        rowLength += length;
+    }
+
+    private void addField(int start, int end)
+    {
+        if (fieldCount == fieldStarts.length)
+        {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * View of a field of the current row. Is reused for all rows.
+     */
+    private class FieldView implements CharSequence
+    {
+
+        private final int col;
+
+        public FieldView(int col)
+        {
+            this.col = col;
+        }
+
+        @Override
+        public int length()
+        {
+            return fieldEnds[col] - fieldStarts[col];
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= length())
+            {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return rowChars[fieldStarts[col] + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(rowChars, fieldStarts[col], length());
+        }
+    }
+}
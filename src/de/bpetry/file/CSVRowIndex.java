@@ -0,0 +1,345 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sparse index of the rows of a csv file. The byte offset of every n-th row
+ * (the interval) is stored, so any row can be reached by seeking to the
+ * offset of the preceding indexed row and skipping less than n rows. The
+ * index is stored in a sidecar file next to the csv file (see
+ * getIndexFile()). It is maintained by the CSVWriter (see setIndexed()) or
+ * built in one pass over an existing file and used by the IndexedCSVReader.
+ *
+ * File layout (big endian): MAGIC, VERSION, int interval, long row count, long
+ * length of the csv file, long modification time of the csv file, int number
+ * of offsets, long[] offsets.
+ *
+ * @author Benjamin Petry
+ */
+public class CSVRowIndex
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int MAGIC = 0x42504931; // "BPI1"
+    final public static int VERSION = 2;
+    final public static int DEFAULT_INTERVAL = 1024;
+    final public static String EXTENSION = ".idx";
+    final private static int HEADER_SIZE = 40;
+    final private static int BUFFER_SIZE = 64 * 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final int interval;
+    private long[] offsets = new long[16];
+    private int offsetCount = 0;
+    private long rowCount = 0;
+    private long fileLength = 0;
+    private long lastModified = 0;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates an empty index.
+     *
+     * @param interval the number of rows between two indexed rows
+     */
+    public CSVRowIndex(int interval)
+    {
+        if (interval < 1)
+        {
+            throw new IllegalArgumentException(
+                    "The interval must be at least 1.");
+        }
+        this.interval = interval;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public int getInterval()
+    {
+        return interval;
+    }
+
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * @param rowCount the number of rows of the csv file
+     */
+    public void setRowCount(long rowCount)
+    {
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * @return the length of the csv file when the index was completed. An
+     * index is only valid for a file of this length.
+     */
+    public long getFileLength()
+    {
+        return fileLength;
+    }
+
+    public void setFileLength(long fileLength)
+    {
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * @return the modification time of the csv file when the index was
+     * completed. An index is only valid for a file with this modification
+     * time.
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified)
+    {
+        this.lastModified = lastModified;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param row the number of a row (starting with 0)
+     * @return true if the offset of the row has to be added next
+     */
+    public boolean isIndexedRow(long row)
+    {
+        return row == (long) offsetCount * interval;
+    }
+
+    /**
+     * Adds the offset of the next indexed row (see isIndexedRow()).
+     *
+     * @param offset the byte offset of the start of the row
+     */
+    public void addOffset(long offset)
+    {
+        if (offsetCount == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[offsetCount++] = offset;
+    }
+
+    /**
+     * @param row the number of a row (starting with 0)
+     * @return the number of the indexed row at or before the row
+     */
+    public long getIndexedRow(long row)
+    {
+        return (offsetCount == 0) ? 0
+                : Math.min(row / interval, offsetCount - 1) * interval;
+    }
+
+    /**
+     * @param row the number of a row (starting with 0)
+     * @return the byte offset of the indexed row at or before the row
+     */
+    public long getOffset(long row)
+    {
+        return (offsetCount == 0) ? 0
+                : offsets[(int) Math.min(row / interval, offsetCount - 1)];
+    }
+
+    /**
+     * Indexes the rows that have been appended to a csv file since the index
+     * was completed (e.g. by a writer that has not been closed). The indexed
+     * part of the file must not have been changed.
+     *
+     * @param csv the csv file
+     * @throws IOException if the file could not be read
+     */
+    public void update(File csv) throws IOException
+    {
+        // taken before reading, so that a concurrent change invalidates it
+        long modified = csv.lastModified();
+        try (FileChannel channel = FileChannel.open(csv.toPath(),
+                StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+            long position = fileLength;
+            long rows = rowCount;
+            boolean inQuotes = false;
+            boolean isRowStart = (position == 0);
+            if (position > 0)
+            {
+                // a row starts if the indexed part ends with a line break
+                ByteBuffer last = ByteBuffer.allocate(1);
+                isRowStart = channel.read(last, position - 1) == 1
+                        && last.get(0) == '\n';
+            }
+            int read;
+            while ((read = channel.read(buffer, position)) > 0)
+            {
+                for (int n = 0; n < read; n++)
+                {
+                    if (isRowStart)
+                    {
+                        if (isIndexedRow(rows))
+                        {
+                            addOffset(position + n);
+                        }
+                        rows++;
+                        isRowStart = false;
+                    }
+                    byte b = bytes[n];
+                    if (b == '"')
+                    {
+                        inQuotes = !inQuotes;
+                    }
+                    else if (b == '\n' && !inQuotes)
+                    {
+                        isRowStart = true;
+                    }
+                }
+                position += read;
+                buffer.clear();
+            }
+            rowCount = rows;
+            fileLength = position;
+            lastModified = modified;
+        }
+    }
+
+    /**
+     * @param csv the csv file
+     * @return true if the index belongs to the current version of the file,
+     * i.e. the file has not been changed since the index was completed
+     */
+    public boolean isValidFor(File csv)
+    {
+        return csv.length() == fileLength && csv.lastModified() == lastModified;
+    }
+
+    /**
+     * Writes the index into a file. The file is replaced atomically, so
+     * readers never see a partly written index.
+     *
+     * @param f the index file
+     * @throws IOException if the index could not be written
+     */
+    public void save(File f) throws IOException
+    {
+        File temp = new File(f.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * offsetCount);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(interval);
+            buffer.putLong(rowCount).putLong(fileLength).putLong(lastModified);
+            buffer.putInt(offsetCount);
+            for (int n = 0; n < offsetCount; n++)
+            {
+                buffer.putLong(offsets[n]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Public Static Methods /////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param csv the csv file
+     * @return the sidecar file of the index of the csv file (e.g. data.csv.idx)
+     */
+    public static File getIndexFile(File csv)
+    {
+        return new File(csv.getPath() + EXTENSION);
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param f the index file
+     * @return the index
+     * @throws IOException if the file could not be read or is no index file
+     */
+    public static CSVRowIndex load(File f) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+        {
+            throw new IOException(f + " is no csv index file.");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION)
+        {
+            throw new IOException("The version " + version + " of " + f
+                    + " is not supported.");
+        }
+        CSVRowIndex index = new CSVRowIndex(buffer.getInt());
+        index.rowCount = buffer.getLong();
+        index.fileLength = buffer.getLong();
+        index.lastModified = buffer.getLong();
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != 8L * count)
+        {
+            throw new IOException(f + " is truncated.");
+        }
+        index.offsets = new long[Math.max(count, 16)];
+        buffer.asLongBuffer().get(index.offsets, 0, count);
+        index.offsetCount = count;
+        return index;
+    }
+
+    /**
+     * Builds the index of an existing csv file in one pass. The rows are
+     * found by quote parity, so the charset must be ASCII compatible (e.g.
+     * UTF-8 or ISO-8859-1).
+     *
+     * @param csv the csv file
+     * @param charset the charset of the file
+     * @param interval the number of rows between two indexed rows
+     * @return the index
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the charset is not ASCII compatible
+     */
+    public static CSVRowIndex build(File csv, Charset charset, int interval)
+            throws IOException
+    {
+        if (!CSVAppendScan.isAsciiCompatible(charset))
+        {
+            throw new IllegalArgumentException("Csv files with the charset "
+                    + charset + " cannot be indexed.");
+        }
+        CSVRowIndex index = new CSVRowIndex(interval);
+        index.update(csv);
+        return index;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Writes objects as rows into a CSVWriter. Is created by CSVSchema.compile().
+ * The header is written automatically before the first row.
+ *
+ * @author Benjamin Petry
+ * @param <T> the type of the objects
+ */
+public class CSVRowWriter<T>
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVWriter writer;
+    private final String[] names;
+    private final CSVSchema.ColumnWriter<T>[] columns;
+    private boolean writeHeader = true;
+    private boolean isHeaderWritten = false;
+    private boolean result = true;
+    private final Consumer<T> bulkWriter = (row) ->
+    {
+        result &= write(row);
+    };
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    CSVRowWriter(CSVWriter writer, String[] names,
+            CSVSchema.ColumnWriter<T>[] columns)
+    {
+        this.writer = writer;
+        this.names = names;
+        this.columns = columns;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVWriter getWriter()
+    {
+        return writer;
+    }
+
+    public boolean isWriteHeader()
+    {
+        return writeHeader;
+    }
+
+    /**
+     * @param writeHeader false, if no header should be written before the
+     * first row (default: true)
+     */
+    public void setWriteHeader(boolean writeHeader)
+    {
+        this.writeHeader = writeHeader;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Writes the header (if not done yet).
+     *
+     * @return true if the writing operation was successful
+     */
+    public boolean writeHeader()
+    {
+        if (isHeaderWritten)
+        {
+            return true;
+        }
+        isHeaderWritten = true;
+        boolean success = true;
+        for (String name : names)
+        {
+            success &= writer.print(name);
+        }
+        return success && writer.newLine();
+    }
+
+    /**
+     * Writes an object as row.
+     *
+     * @param row the object
+     * @return true if the writing operation was successful
+     */
+    public boolean write(T row)
+    {
+        boolean success = !writeHeader || writeHeader();
+        for (CSVSchema.ColumnWriter<T> column : columns)
+        {
+            success &= column.write(writer, row);
+        }
+        return success && writer.newLine();
+    }
+
+    public boolean writeAll(Iterable<? extends T> rows)
+    {
+        boolean success = true;
+        for (T row : rows)
+        {
+            success &= write(row);
+        }
+        return success;
+    }
+
+    /**
+     * Writes all objects of a stream in their encounter order.
+     *
+     * @param rows the stream
+     * @return true if all writing operations were successful
+     */
+    public boolean writeAll(Stream<? extends T> rows)
+    {
+        return writeAll(rows.spliterator());
+    }
+
+    public boolean writeAll(Spliterator<? extends T> rows)
+    {
+        result = true;
+        rows.forEachRemaining(bulkWriter);
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Describes the columns of a csv file that contains one row per object. Each
+ * column has a name (for the header) and an extractor that reads its value
+ * from the object. Primitive columns are written without boxing. Describe the
+ * columns once and compile the schema into a CSVRowWriter:
+ * <pre>
+ * CSVRowWriter&lt;Person&gt; rows = new CSVSchema&lt;Person&gt;()
+ *         .column("name", Person::getName)
+ *         .intColumn("age", Person::getAge)
+ *         .compile(writer);
+ * rows.writeAll(persons);
+ * </pre>
+ *
+ * @author Benjamin Petry
+ * @param <T> the type of the objects
+ */
+public class CSVSchema<T>
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final List<String> names = new ArrayList<>();
+    private final List<ColumnWriter<T>> columns = new ArrayList<>();
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public String[] getColumnNames()
+    {
+        return names.toArray(new String[names.size()]);
+    }
+
+    public int getColumnCount()
+    {
+        return names.size();
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Adds a column whose values are written with CSVWriter.print(Object).
+     *
+     * @param name the name of the column
+     * @param extractor reads the value from an object (may return null)
+     * @return this schema
+     */
+    public CSVSchema<T> column(String name,
+            Function<? super T, ? extends Object> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(extractor.apply(row)));
+    }
+
+    public CSVSchema<T> stringColumn(String name,
+            Function<? super T, ? extends CharSequence> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(extractor.apply(row)));
+    }
+
+    public CSVSchema<T> intColumn(String name, ToIntFunction<? super T> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(
+                extractor.applyAsInt(row)));
+    }
+
+    public CSVSchema<T> longColumn(String name,
+            ToLongFunction<? super T> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(extractor.applyAsLong(
+                row)));
+    }
+
+    public CSVSchema<T> doubleColumn(String name,
+            ToDoubleFunction<? super T> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(
+                extractor.applyAsDouble(row)));
+    }
+
+    public CSVSchema<T> booleanColumn(String name,
+            Predicate<? super T> extractor)
+    {
+        return add(name, (writer, row) -> writer.print(extractor.test(row)));
+    }
+
+    /**
+     * Creates a row writer for the current columns. Columns added afterwards
+     * are not part of the row writer.
+     *
+     * @param writer the opened csv writer to write the rows into
+     * @return the row writer
+     */
+    @SuppressWarnings(
+            {
+                "unchecked", "rawtypes"
+            })
+    public CSVRowWriter<T> compile(CSVWriter writer)
+    {
+        return new CSVRowWriter<>(writer, getColumnNames(),
+                columns.toArray(new ColumnWriter[columns.size()]));
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private CSVSchema<T> add(String name, ColumnWriter<T> column)
+    {
+        names.add(name);
+        columns.add(column);
+        return this;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Writes the value of one column
+     *
+     * @param <T> the type of the objects
+     */
+    interface ColumnWriter<T>
+    {
+
+        public boolean write(CSVWriter writer, T row);
+    }
+}
@@ -0,0 +1,714 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts csv files that are larger than the memory (external merge sort). The
+ * rows are read in runs that fit into the memory budget. Every run is sorted
+ * in parallel and spilled into a temporary file by a background thread while
+ * the next run is read. Finally, the runs are merged with a heap. The sort is
+ * stable and the output is written by a CSVWriter, so files written by a
+ * CSVWriter with the same separators are sorted byte for byte.
+ * <pre>
+ * CSVSorter sorter = new CSVSorter("data.csv");
+ * sorter.addSortKey("group");
+ * sorter.addSortKey("age", true, true); // numeric, descending
+ * sorter.sort(new File("sorted.csv"));
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class CSVSorter
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    final public static int DEFAULT_MERGE_WIDTH = 64;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private Charset charset = StandardCharsets.UTF_8;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private String lineSeparator = System.getProperty("line.separator");
+    private boolean hasHeader = true;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int runSize = 0;
+    private int mergeWidth = DEFAULT_MERGE_WIDTH;
+    private File tempDirectory = null;
+    private final List<SortKey> keys = new ArrayList<>();
+    private int runCount = 0;
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVSorter(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public CSVSorter(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public String getLineSeparator()
+    {
+        return lineSeparator;
+    }
+
+    /**
+     * @param lineSeparator the line separator of the sorted file (default:
+     * platform line separator like the CSVWriter)
+     */
+    public void setLineSeparator(String lineSeparator)
+    {
+        this.lineSeparator = lineSeparator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * @param charset the charset of the file and of the sorted file (default:
+     * UTF-8)
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public boolean hasHeader()
+    {
+        return hasHeader;
+    }
+
+    /**
+     * @param hasHeader true, if the first row contains the names of the
+     * columns (default). The header stays the first row.
+     */
+    public void setHeader(boolean hasHeader)
+    {
+        this.hasHeader = hasHeader;
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the estimated memory that the rows may take. Two runs are held in
+     * memory at the same time (one is read, the other one is sorted and
+     * spilled), so a run takes at most half of the budget.
+     *
+     * @param memoryBudget the memory in bytes (default: 64 MiB)
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = Math.max(memoryBudget, 1024);
+    }
+
+    public int getRunSize()
+    {
+        return runSize;
+    }
+
+    /**
+     * @param runSize the maximum number of rows of a run (0 = limited by the
+     * memory budget only)
+     */
+    public void setRunSize(int runSize)
+    {
+        this.runSize = Math.max(runSize, 0);
+    }
+
+    public int getMergeWidth()
+    {
+        return mergeWidth;
+    }
+
+    /**
+     * @param mergeWidth the maximum number of runs that are merged at once
+     * (i.e. open files). If there are more runs, they are merged in several
+     * passes (default: 64).
+     */
+    public void setMergeWidth(int mergeWidth)
+    {
+        this.mergeWidth = Math.max(mergeWidth, 2);
+    }
+
+    public File getTempDirectory()
+    {
+        return tempDirectory;
+    }
+
+    /**
+     * @param tempDirectory the directory of the runs (null = default
+     * temporary directory)
+     */
+    public void setTempDirectory(File tempDirectory)
+    {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @return the number of runs that were spilled by the last call of
+     * sort() (0 if the file fitted into the memory)
+     */
+    public int getRunCount()
+    {
+        return runCount;
+    }
+
+    /**
+     * @return the exception of the last failed sort operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Sorts by the text of a column (ascending).
+     *
+     * @param name the name of the column in the header
+     */
+    public void addSortKey(String name)
+    {
+        addSortKey(name, false, false);
+    }
+
+    /**
+     * @param name the name of the column in the header
+     * @param numeric true to compare the values as numbers. Empty and not
+     * numeric values are sorted after all numbers.
+     * @param descending true to sort in descending order
+     */
+    public void addSortKey(String name, boolean numeric, boolean descending)
+    {
+        keys.add(new SortKey(-1, name, numeric, descending));
+    }
+
+    /**
+     * Sorts by the text of a column (ascending).
+     *
+     * @param index the index of the column
+     */
+    public void addSortKey(int index)
+    {
+        addSortKey(index, false, false);
+    }
+
+    /**
+     * @param index the index of the column
+     * @param numeric true to compare the values as numbers. Empty and not
+     * numeric values are sorted after all numbers.
+     * @param descending true to sort in descending order
+     */
+    public void addSortKey(int index, boolean numeric, boolean descending)
+    {
+        keys.add(new SortKey(index, null, numeric, descending));
+    }
+
+    /**
+     * Sorts the file by the sort keys. Rows that are equal in all keys keep
+     * their order.
+     *
+     * @param output the sorted file (must not be the file itself)
+     * @return true if the file could be sorted
+     * @throws IllegalArgumentException if a key column does not exist
+     */
+    public boolean sort(File output)
+    {
+        List<File> runs = new ArrayList<>();
+        List<File> tempFiles = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService spiller = Executors.newSingleThreadExecutor();
+        runCount = 0;
+        try
+        {
+            CSVReader reader = createReader(file, charset);
+            if (!reader.open())
+            {
+                throw reader.getLastError();
+            }
+            String[] header;
+            RowComparator comparator;
+            List<Row> run = new ArrayList<>();
+            try
+            {
+                header = hasHeader ? reader.readRow() : null;
+                comparator = new RowComparator(resolveKeys(header));
+                Future<File> pending = null;
+                long runBytes = 0;
+                while (reader.next())
+                {
+                    Row row = new Row(reader.getRow(), comparator.keys);
+                    run.add(row);
+                    runBytes += row.estimateSize();
+                    if ((runSize > 0 && run.size() >= runSize)
+                            || runBytes >= memoryBudget / 2)
+                    {
+                        if (pending != null)
+                        {
+                            runs.add(pending.get());
+                        }
+                        List<Row> fullRun = run;
+                        pending = spiller.submit(() -> spill(fullRun,
+                                comparator, tempFiles));
+                        run = new ArrayList<>();
+                        runBytes = 0;
+                    }
+                }
+                if (pending != null)
+                {
+                    runs.add(pending.get());
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+            if (reader.getLastError() != null)
+            {
+                throw reader.getLastError();
+            }
+            if (runs.isEmpty())
+            {
+                // the file fits into the memory
+                writeRows(sortRun(run, comparator), header, output, charset);
+                return true;
+            }
+            if (!run.isEmpty())
+            {
+                runs.add(spill(run, comparator, tempFiles));
+            }
+            runCount = runs.size();
+            while (runs.size() > mergeWidth)
+            {
+                // the merged runs are replaced by their result
+                List<File> inputs = new ArrayList<>(runs.subList(0, mergeWidth));
+                File result = createTempFile(tempFiles);
+                merge(inputs, comparator, null, result, StandardCharsets.UTF_8);
+                runs.subList(0, mergeWidth).clear();
+                runs.add(0, result);
+                deleteAll(inputs);
+            }
+            merge(runs, comparator, header, output, charset);
+            return true;
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not sort csv file", ex);
+            return false;
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+            lastError = (ex.getCause() instanceof IOException)
+                    ? (IOException) ex.getCause() : new IOException(ex);
+            Log.error("Could not sort csv file", lastError);
+            return false;
+        }
+        finally
+        {
+            spiller.shutdownNow();
+            try
+            {
+                spiller.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            deleteAll(tempFiles);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private CSVReader createReader(File f, Charset charset)
+    {
+        CSVReader reader = new CSVReader(f);
+        reader.setCharset(charset);
+        reader.setFieldSeperator(fieldSeperator);
+        return reader;
+    }
+
+    private CSVWriter createWriter(File f, Charset charset)
+    {
+        CSVWriter writer = new CSVWriter(f);
+        writer.setOutputMode(CSVOutputMode.CHANNEL);
+        writer.setCharset(charset);
+        writer.setFieldSeperator(fieldSeperator);
+        writer.setLineSeparator(lineSeparator);
+        return writer;
+    }
+
+    /**
+     * Creates a temporary file and adds it to the files that are deleted
+     * after sorting.
+     */
+    private File createTempFile(List<File> tempFiles) throws IOException
+    {
+        File f = File.createTempFile("csvsort", ".csv", tempDirectory);
+        tempFiles.add(f);
+        return f;
+    }
+
+    /**
+     * @return the keys with the indices of the named columns
+     */
+    private SortKey[] resolveKeys(String[] header)
+    {
+        SortKey[] resolved = new SortKey[keys.size()];
+        for (int n = 0; n < resolved.length; n++)
+        {
+            SortKey key = keys.get(n);
+            int index = key.index;
+            if (key.name != null)
+            {
+                index = (header != null) ? Arrays.asList(header).indexOf(key.name) : -1;
+                if (index < 0)
+                {
+                    throw new IllegalArgumentException("The column " + key.name
+                            + " does not exist in " + file);
+                }
+            }
+            resolved[n] = new SortKey(index, key.name, key.numeric,
+                    key.descending);
+        }
+        return resolved;
+    }
+
+    /**
+     * Sorts a run and writes it into a temporary file (UTF-8).
+     */
+    private File spill(List<Row> run, RowComparator comparator,
+            List<File> tempFiles) throws IOException
+    {
+        File f = createTempFile(tempFiles);
+        writeRows(sortRun(run, comparator), null, f, StandardCharsets.UTF_8);
+        return f;
+    }
+
+    private void writeRows(Row[] rows, String[] header, File f,
+            Charset charset) throws IOException
+    {
+        CSVWriter writer = createWriter(f, charset);
+        if (!writer.open())
+        {
+            throw writer.getLastError();
+        }
+        try
+        {
+            if (header != null)
+            {
+                check(writer.println((Object[]) header), writer);
+            }
+            for (Row row : rows)
+            {
+                check(writer.println((Object[]) row.fields), writer);
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        check(writer.getLastError() == null, writer);
+    }
+
+    /**
+     * Merges sorted runs with a heap. If two rows are equal, the row of the
+     * earlier run is written first.
+     */
+    private void merge(List<File> runs, RowComparator comparator,
+            String[] header, File f, Charset charset) throws IOException
+    {
+        PriorityQueue<RunCursor> heap = new PriorityQueue<>(runs.size(),
+                (c1, c2) ->
+        {
+            int result = comparator.compare(c1.row, c2.row);
+            return (result != 0) ? result : Integer.compare(c1.index, c2.index);
+        });
+        List<RunCursor> cursors = new ArrayList<>();
+        CSVWriter writer = createWriter(f, charset);
+        try
+        {
+            for (int n = 0; n < runs.size(); n++)
+            {
+                RunCursor cursor = new RunCursor(createReader(runs.get(n),
+                        StandardCharsets.UTF_8), n, comparator.keys);
+                cursors.add(cursor);
+                if (cursor.next())
+                {
+                    heap.add(cursor);
+                }
+            }
+            if (!writer.open())
+            {
+                throw writer.getLastError();
+            }
+            if (header != null)
+            {
+                check(writer.println((Object[]) header), writer);
+            }
+            while (!heap.isEmpty())
+            {
+                RunCursor cursor = heap.poll();
+                check(writer.println((Object[]) cursor.row.fields), writer);
+                if (cursor.next())
+                {
+                    heap.add(cursor);
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+            for (RunCursor cursor : cursors)
+            {
+                cursor.reader.close();
+            }
+        }
+        check(writer.getLastError() == null, writer);
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static Row[] sortRun(List<Row> run, RowComparator comparator)
+    {
+        Row[] rows = run.toArray(new Row[run.size()]);
+        Arrays.parallelSort(rows, comparator);
+        return rows;
+    }
+
+    private static void check(boolean result, CSVWriter writer)
+            throws IOException
+    {
+        if (!result)
+        {
+            throw (writer.getLastError() != null) ? writer.getLastError()
+                    : new IOException("Could not write csv file");
+        }
+    }
+
+    private static void deleteAll(List<File> files)
+    {
+        for (File f : new ArrayList<>(files))
+        {
+            if (f.exists() && !f.delete())
+            {
+                Log.warning("Could not delete temporary file " + f);
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    private static class SortKey
+    {
+
+        private final int index;
+        private final String name;
+        private final boolean numeric;
+        private final boolean descending;
+
+        public SortKey(int index, String name, boolean numeric,
+                boolean descending)
+        {
+            this.index = index;
+            this.name = name;
+            this.numeric = numeric;
+            this.descending = descending;
+        }
+    }
+
+    /**
+     * A row with the parsed values of its numeric keys.
+     */
+    private static class Row
+    {
+
+        private final String[] fields;
+        private final double[] numbers;
+
+        public Row(String[] fields, SortKey[] keys)
+        {
+            this.fields = fields;
+            this.numbers = new double[keys.length];
+            for (int n = 0; n < keys.length; n++)
+            {
+                numbers[n] = keys[n].numeric ? parse(field(keys[n].index))
+                        : Double.NaN;
+            }
+        }
+
+        public String field(int index)
+        {
+            return (index < fields.length) ? fields[index] : "";
+        }
+
+        /**
+         * @return the estimated number of bytes the row takes in memory
+         */
+        public long estimateSize()
+        {
+            long size = 64 + 8L * (fields.length + numbers.length);
+            for (String field : fields)
+            {
+                size += 48 + 2L * field.length();
+            }
+            return size;
+        }
+
+        private static double parse(String value)
+        {
+            try
+            {
+                return value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+            }
+            catch (NumberFormatException ex)
+            {
+                return Double.NaN;
+            }
+        }
+    }
+
+    private static class RowComparator implements Comparator<Row>
+    {
+
+        private final SortKey[] keys;
+
+        public RowComparator(SortKey[] keys)
+        {
+            this.keys = keys;
+        }
+
+        @Override
+        public int compare(Row row1, Row row2)
+        {
+            for (int n = 0; n < keys.length; n++)
+            {
+                int result;
+                if (keys[n].numeric)
+                {
+                    double value1 = row1.numbers[n];
+                    double value2 = row2.numbers[n];
+                    if (Double.isNaN(value1) || Double.isNaN(value2))
+                    {
+                        // not numeric values are always sorted last
+                        result = Boolean.compare(Double.isNaN(value1),
+                                Double.isNaN(value2));
+                        if (result != 0)
+                        {
+                            return result;
+                        }
+                        continue;
+                    }
+                    result = Double.compare(value1, value2);
+                }
+                else
+                {
+                    result = row1.field(keys[n].index).compareTo(
+                            row2.field(keys[n].index));
+                }
+                if (result != 0)
+                {
+                    return keys[n].descending ? -result : result;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The current row of a run that is merged.
+     */
+    private static class RunCursor
+    {
+
+        private final CSVReader reader;
+        private final int index;
+        private final SortKey[] keys;
+        private Row row = null;
+
+        public RunCursor(CSVReader reader, int index, SortKey[] keys)
+                throws IOException
+        {
+            this.reader = reader;
+            this.index = index;
+            this.keys = keys;
+            if (!reader.open())
+            {
+                throw reader.getLastError();
+            }
+        }
+
+        public boolean next() throws IOException
+        {
+            if (!reader.next())
+            {
+                if (reader.getLastError() != null)
+                {
+                    throw reader.getLastError();
+                }
+                return false;
+            }
+            row = new Row(reader.getRow(), keys);
+            return true;
+        }
+    }
+}
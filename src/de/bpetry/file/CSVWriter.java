@@ -8,9 +8,19 @@ package de.bpetry.file;
 
 import de.bpetry.util.Log;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.zip.Deflater;
 
 /**
  * Class that provides functionality to write data into a CSV file
@@ -26,17 +36,39 @@ public class CSVWriter
     final public static String SEPARATOR_COMMA = ",";
     final public static String SEPARATOR_TAB = "\t";
     final public static String SEPARATOR_PIPE = "|";
+    final public static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    final public static int DEFAULT_FLUSH_THRESHOLD = 8 * 1024;
 
     //-------------------------------------------------------------------------
     ////////////////////////////  Private Variables ///////////////////////////
     //-------------------------------------------------------------------------
-    private FileWriter writer;
+    private CSVOutput output;
     private File file;
+    private WritableByteChannel sink = null;
+    private CSVOutputMode outputMode = CSVOutputMode.WRITER;
+    private Charset charset = StandardCharsets.UTF_8;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private CSVFlushPolicy flushPolicy = CSVFlushPolicy.CLOSE;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private boolean compressed = false;
+    private boolean append = false;
+    private boolean indexed = false;
+    private int indexInterval = CSVRowIndex.DEFAULT_INTERVAL;
+    private CSVRowIndex index = null;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionWorkers = Runtime.getRuntime().availableProcessors();
     private String fieldSeperator = SEPARATOR_COMMA;
     private String lineSeparator = System.getProperty("line.separator");
-    private int bytesWritten = 0;
+    private long charsWritten = 0;
+    private long appendedLength = 0;
+    private long rowsWritten = 0;
     private boolean isCurrentLineEmpty = true;
     private boolean waitForNewLine = false;
+    private final NumberChars numberChars = new NumberChars();
+    private final NumberChars beforeRowNumberChars = new NumberChars();
+    private IOException lastError = null;
+    private boolean isInBeforeRow = false;
+    private boolean isClosedInBeforeRow = false;
 
     //-------------------------------------------------------------------------
     ////////////////////////  Private Static Variables ////////////////////////
@@ -53,6 +85,31 @@ public class CSVWriter
     {
         file = f;
     }
+
+    /**
+     * Creates a writer that writes into a stream (e.g. a socket or an HTTP
+     * response). The stream is closed by close(), therefore the writer can
+     * only be opened once.
+     *
+     * @param os the stream to write into
+     */
+    public CSVWriter(OutputStream os)
+    {
+        this(Channels.newChannel(os));
+    }
+
+    /**
+     * Creates a writer that writes into a channel (e.g. a pipe or a
+     * ByteBufferChannel). The channel is closed by close(), therefore the
+     * writer can only be opened once. Output to channels is always written in
+     * the CHANNEL output mode.
+     *
+     * @param channel the channel to write into
+     */
+    public CSVWriter(WritableByteChannel channel)
+    {
+        sink = channel;
+    }
     //-------------------------------------------------------------------------
     ///////////////////////  Getter and Setter Methods ////////////////////////
     //-------------------------------------------------------------------------
@@ -77,23 +134,311 @@ public class CSVWriter
         this.lineSeparator = lineSeparator;
     }
 
+    /**
+     * @return the exception of the last failed open, write, flush or close
+     * operation or null if no operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * @return the file to write into or null if the writer writes into a
+     * stream or channel
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Sets the file to write into. Takes effect with the next call of open().
+     *
+     * @param file the csv file
+     */
+    protected void setFile(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Counts the bytes written into the current file. In the CHANNEL output
+     * mode these are the encoded bytes, in the WRITER output mode the number
+     * of chars. In the append mode the length of the existing content is
+     * included.
+     *
+     * @return the number of bytes written (including buffered output) or 0 if
+     * the file is not opened
+     */
+    public long getBytesWritten()
+    {
+        if (output == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return appendedLength + output.countBytes();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not write into csv file", ex);
+            return appendedLength + output.getBytesWritten();
+        }
+    }
+
+    /**
+     * Counts the rows of the current file. In the append mode the rows that
+     * existed before the file was opened are included.
+     *
+     * @return the number of rows whose first field has been written since the
+     * file was opened
+     */
+    public long getRowsWritten()
+    {
+        return rowsWritten;
+    }
+
+    public CSVOutputMode getOutputMode()
+    {
+        return outputMode;
+    }
+
+    /**
+     * Sets how the file is written. Takes effect with the next call of open().
+     *
+     * @param outputMode WRITER (default) uses a FileWriter with the platform
+     * charset, CHANNEL uses a FileChannel with a direct buffer and the charset
+     * of this writer
+     */
+    public void setOutputMode(CSVOutputMode outputMode)
+    {
+        this.outputMode = outputMode;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * Sets the charset of the CHANNEL output mode (default: UTF-8). Takes
+     * effect with the next call of open().
+     *
+     * @param charset the charset to encode the file with
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the output buffers. Takes effect with the next call of
+     * open().
+     *
+     * @param bufferSize size in chars (and bytes for the CHANNEL output mode)
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    public CSVFlushPolicy getFlushPolicy()
+    {
+        return flushPolicy;
+    }
+
+    /**
+     * Sets when buffered output is written into the file. Takes effect with
+     * the next call of open().
+     *
+     * @param flushPolicy ROW, BYTES (see setFlushThreshold()) or CLOSE
+     * (default)
+     */
+    public void setFlushPolicy(CSVFlushPolicy flushPolicy)
+    {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public int getFlushThreshold()
+    {
+        return flushThreshold;
+    }
+
+    /**
+     * Sets the number of buffered bytes after which the output is flushed if
+     * the flush policy is BYTES.
+     *
+     * @param flushThreshold number of bytes
+     */
+    public void setFlushThreshold(int flushThreshold)
+    {
+        this.flushThreshold = flushThreshold;
+    }
+
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Enables gzip compression. The output is compressed in blocks on a pool
+     * of worker threads (see ParallelGzipChannel). Compressed files are always
+     * written in the CHANNEL output mode. Takes effect with the next call of
+     * open().
+     *
+     * @param compressed true to write a gzip file
+     */
+    public void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel the gzip compression level (0-9 or
+     * Deflater.DEFAULT_COMPRESSION)
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionWorkers()
+    {
+        return compressionWorkers;
+    }
+
+    /**
+     * @param compressionWorkers the number of threads compressing the output
+     * (default: number of available processors)
+     */
+    public void setCompressionWorkers(int compressionWorkers)
+    {
+        this.compressionWorkers = compressionWorkers;
+    }
+
+    public boolean isAppend()
+    {
+        return append;
+    }
+
+    /**
+     * Enables the append mode. Rows are appended to an existing file instead
+     * of replacing it. On open, a torn last row (e.g. after a crash) is
+     * removed from the file (see CSVAppendScan) and the row and byte counters
+     * continue with the existing content. The counters are kept in a state
+     * file next to the csv file, so the existing content is only scanned if
+     * it has been changed since it was closed (or only the rows that have
+     * been written after the last open, e.g. if the writer has crashed). The apostrophe for fields starting
+     * with "ID" is only added if the file is empty. The charset has to be
+     * ASCII compatible (e.g. UTF-8 or ISO-8859-1) and the file must not be
+     * compressed. Takes effect with the next call of open().
+     *
+     * @param append true to append to an existing file
+     */
+    public void setAppend(boolean append)
+    {
+        this.append = append;
+    }
+
+    public boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+     * Maintains a row index of the file while writing (see CSVRowIndex). The
+     * offset of every n-th row is recorded and the index is saved next to the
+     * file by close(). In the append mode the index of the existing content is
+     * loaded or rebuilt. Indexed files must be written in the CHANNEL output
+     * mode without compression and with an ASCII compatible charset. Takes
+     * effect with the next call of open().
+     *
+     * @param indexed true to write an index
+     */
+    public void setIndexed(boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    public int getIndexInterval()
+    {
+        return indexInterval;
+    }
+
+    /**
+     * @param indexInterval the number of rows between two indexed rows
+     * (default: 1024)
+     */
+    public void setIndexInterval(int indexInterval)
+    {
+        this.indexInterval = Math.max(indexInterval, 1);
+    }
+
+    /**
+     * @return the row index of the current (or last) file or null if the file
+     * is not indexed
+     */
+    public CSVRowIndex getIndex()
+    {
+        return index;
+    }
+
     //-------------------------------------------------------------------------
     /////////////////////////////  Public Methods /////////////////////////////
     //-------------------------------------------------------------------------
     public boolean open()
     {
         close();
+        FileChannel channel = null;
         try
         {
-            writer = new FileWriter(file);
-            bytesWritten = 0;
+            if (indexed && (sink != null || outputMode != CSVOutputMode.CHANNEL
+                    || compressed || !CSVAppendScan.isAsciiCompatible(charset)))
+            {
+                throw new IOException("Only uncompressed csv files written in "
+                        + "the CHANNEL output mode with an ASCII compatible "
+                        + "charset can be indexed.");
+            }
+            CSVAppendScan scan = null;
+            if (!append && sink == null)
+            {
+                // the file is replaced, so its append state and index are stale
+                Files.deleteIfExists(CSVAppendScan.getStateFile(file).toPath());
+                Files.deleteIfExists(CSVRowIndex.getIndexFile(file).toPath());
+            }
+            if (append && sink == null && file.length() > 0)
+            {
+                channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                scan = repairForAppend(channel);
+            }
+            index = indexed ? createIndex(scan) : null;
+            output = createOutput(channel);
+            charsWritten = 0;
             isCurrentLineEmpty = true;
-            waitForNewLine = false;
+            appendedLength = (scan != null) ? scan.getLength() : 0;
+            rowsWritten = (scan != null) ? scan.getRowCount() : 0;
+            waitForNewLine = appendedLength > 0 && !scan.endsWithLineBreak();
         }
         catch (IOException ex)
         {
+            lastError = ex;
             Log.error("Could not open csv file for writing", ex);
-            writer = null;
+            closeQuietly(channel);
+            output = null;
             return false;
         }
         return true;
@@ -101,21 +446,39 @@ public class CSVWriter
 
     public boolean close()
     {
-        if (writer != null)
+        isClosedInBeforeRow = false;
+        if (output != null)
         {
             try
             {
-                writer.close();
+                output.close();
+                if (index != null)
+                {
+                    index.setRowCount(rowsWritten);
+                    index.setFileLength(appendedLength + output.getBytesWritten());
+                    index.setLastModified(file.lastModified());
+                    index.save(CSVRowIndex.getIndexFile(file));
+                }
+                if (append && sink == null)
+                {
+                    boolean endsWithLineBreak = appendedLength > 0
+                            && charsWritten == 0 && isCurrentLineEmpty
+                            && !waitForNewLine;
+                    new CSVAppendScan(file.length(), rowsWritten,
+                            endsWithLineBreak).save(file);
+                }
             }
             catch (IOException ex)
             {
+                lastError = ex;
                 Log.error("Could not close csv file", ex);
                 return false;
             }
             finally
             {
-                writer = null;
-                bytesWritten = 0;
+                output = null;
+                charsWritten = 0;
+                appendedLength = 0;
                 isCurrentLineEmpty = true;
                 waitForNewLine = false;
             }
@@ -128,7 +491,7 @@ public class CSVWriter
         boolean result = true;
         for (Object field : fields)
         {
-            result &= print(field.toString());
+            result &= print(field);
         }
         return result;
     }
@@ -138,19 +501,108 @@ public class CSVWriter
         boolean result = true;
         for (Object field : fields)
         {
-            result &= print(field.toString());
+            result &= print(field);
         }
         return result;
     }
 
+    /**
+     * Writes a field. Strings, numbers, characters and booleans are written
+     * without calling toString().
+     *
+     * @param fieldO the field to write (can be null -> "")
+     * @return true if the writing operation was successful
+     */
     public boolean print(Object fieldO)
     {
-        String field = handleField(fieldO);
-        if (!isCurrentLineEmpty)
+        if (fieldO == null)
+        {
+            return print("");
+        }
+        if (fieldO instanceof CharSequence)
+        {
+            return print((CharSequence) fieldO);
+        }
+        if (fieldO instanceof Integer || fieldO instanceof Short || fieldO instanceof Byte)
+        {
+            return print(((Number) fieldO).intValue());
+        }
+        if (fieldO instanceof Long)
+        {
+            return print(((Long) fieldO).longValue());
+        }
+        if (fieldO instanceof Double)
+        {
+            return print(((Double) fieldO).doubleValue());
+        }
+        if (fieldO instanceof Float)
+        {
+            return print(((Float) fieldO).floatValue());
+        }
+        if (fieldO instanceof Boolean)
+        {
+            return print(((Boolean) fieldO).booleanValue());
+        }
+        if (fieldO instanceof Character)
         {
-            field = this.fieldSeperator + field;
+            return print(((Character) fieldO).charValue());
         }
-        return write(field);
+        return print(fieldO.toString());
+    }
+
+    public boolean print(CharSequence field)
+    {
+        return write((field == null) ? "" : field);
+    }
+
+    public boolean print(int field)
+    {
+        return write(getNumberChars().set(field));
+    }
+
+    public boolean print(long field)
+    {
+        return write(getNumberChars().set(field));
+    }
+
+    /**
+     * Writes a double with the shortest digits that are parsed back into the
+     * same value (see NumberFormatter).
+     *
+     * @param field the field to write
+     * @return true if the writing operation was successful
+     */
+    public boolean print(double field)
+    {
+        return write(getNumberChars().set(field));
+    }
+
+    /**
+     * Writes a double with a fixed number of decimals (e.g. "3.14" for 2
+     * decimals).
+     *
+     * @param field the field to write
+     * @param decimals the number of digits after the decimal point
+     * @return true if the writing operation was successful
+     */
+    public boolean print(double field, int decimals)
+    {
+        return write(getNumberChars().set(field, decimals));
+    }
+
+    public boolean print(float field)
+    {
+        return write(getNumberChars().set(field));
+    }
+
+    public boolean print(boolean field)
+    {
+        return write(field ? "true" : "false");
+    }
+
+    public boolean print(char field)
+    {
+        return write(getNumberChars().set(field));
     }
 
     public boolean println(Collection<? extends Object> fields)
@@ -165,18 +617,105 @@ public class CSVWriter
 
     public boolean println(Object field)
     {
-        return print(field.toString()) && newLine();
+        return print(field) && newLine();
     }
 
     /**
      * Adds a new line to the file (only if content is following)
      *
-     * @return always true
+     * @return false, if the flush policy is ROW and flushing failed.
+     * Otherwise true.
      */
     public boolean newLine()
     {
         waitForNewLine = true;
         isCurrentLineEmpty = true;
+        if (output != null)
+        {
+            try
+            {
+                output.endRow();
+            }
+            catch (IOException ex)
+            {
+                lastError = ex;
+                Log.error("Could not flush csv file", ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all buffered output into the file.
+     *
+     * @return true if the flushing operation was successful
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean flush()
+    {
+        if (output == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+        try
+        {
+            output.flush();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not flush csv file", ex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes all buffered output into the file and forces it onto the storage
+     * device (fsync). Only uncompressed files written in the CHANNEL output
+     * mode can be synchronized.
+     *
+     * @return true if the output has been written and forced
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean sync()
+    {
+        if (output == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+        try
+        {
+            if (!output.sync())
+            {
+                throw new IOException("The csv output cannot be synchronized. "
+                        + "Use the CHANNEL output mode without compression.");
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not sync csv file", ex);
+            return false;
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Protected Methods ///////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Is called before the first field of a row is written. Fields written
+     * within this method do not call it again. If the method closes the file
+     * (e.g. because another file could not be opened), it is called again
+     * for the next field instead of failing with an IllegalStateException,
+     * so it can retry to open a file.
+     *
+     * @return false if the row cannot be written
+     */
+    protected boolean beforeRow()
+    {
         return true;
     }
 
@@ -184,61 +723,229 @@ public class CSVWriter
     /////////////////////////////  Private Methods ////////////////////////////
     //-------------------------------------------------------------------------
     /**
-     * Writes a string into the currently open file. If the command newline has
+     * @return the buffer to format numbers. Fields written in beforeRow() get
+     * their own buffer, since they are written while the field that triggered
+     * beforeRow() is still pending.
+     */
+    private NumberChars getNumberChars()
+    {
+        return isInBeforeRow ? beforeRowNumberChars : numberChars;
+    }
+
+    /**
+     * @param appendChannel the channel of the file to append to or null to
+     * replace the file
+     */
+    private CSVOutput createOutput(FileChannel appendChannel) throws IOException
+    {
+        if (sink == null && outputMode == CSVOutputMode.WRITER && !compressed)
+        {
+            closeQuietly(appendChannel);
+            return new CSVWriterOutput(new FileWriter(file, append), bufferSize,
+                    flushPolicy, flushThreshold);
+        }
+        WritableByteChannel channel;
+        if (sink != null)
+        {
+            channel = sink;
+        }
+        else if (appendChannel != null)
+        {
+            channel = appendChannel.position(appendChannel.size());
+        }
+        else
+        {
+            channel = new FileOutputStream(file, append).getChannel();
+        }
+        if (compressed)
+        {
+            channel = new ParallelGzipChannel(channel, compressionLevel,
+                    compressionWorkers, ParallelGzipChannel.DEFAULT_BLOCK_SIZE);
+        }
+        return new CSVChannelOutput(channel, charset, bufferSize, flushPolicy,
+                flushThreshold);
+    }
+
+    /**
+     * Removes a torn last row from a file that is going to be appended to.
+     * The scan continues from the saved state of the file if possible and
+     * its result is saved as the new state.
+     *
+     * @param channel the channel of the file (opened for reading and writing)
+     * @return the result of the scan
+     * @throws IOException if the file cannot be appended to or could not be
+     * read or truncated
+     */
+    private CSVAppendScan repairForAppend(FileChannel channel) throws IOException
+    {
+        if (compressed)
+        {
+            throw new IOException("Compressed csv files cannot be appended to.");
+        }
+        Charset fileCharset = (outputMode == CSVOutputMode.WRITER)
+                ? Charset.defaultCharset() : charset;
+        if (!CSVAppendScan.isAsciiCompatible(fileCharset))
+        {
+            throw new IOException("Csv files with the charset " + fileCharset
+                    + " cannot be appended to.");
+        }
+        CSVAppendScan state = null;
+        try
+        {
+            state = CSVAppendScan.load(file);
+        }
+        catch (IOException ex)
+        {
+            Log.warning("Could not load the append state of " + file, ex);
+        }
+        byte[] encodedLineSeparator = lineSeparator.getBytes(fileCharset);
+        CSVAppendScan scan = (state != null)
+                ? CSVAppendScan.scan(channel, encodedLineSeparator, state)
+                : CSVAppendScan.scan(channel, encodedLineSeparator);
+        if (scan.getLength() < channel.size())
+        {
+            Log.warning("Removed the torn last row of " + file + " ("
+                    + (channel.size() - scan.getLength()) + " bytes)");
+            channel.truncate(scan.getLength());
+        }
+        if (scan != state)
+        {
+            try
+            {
+                scan.save(file);
+            }
+            catch (IOException ex)
+            {
+                Log.warning("Could not save the append state of " + file, ex);
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Creates the index of a new file or continues the index of the existing
+     * content. Rows that have been appended after the index was saved (e.g.
+     * after a crash) are added to it. An index that does not match the
+     * content is rebuilt.
+     *
+     * @param scan the scan of the existing content or null
+     */
+    private CSVRowIndex createIndex(CSVAppendScan scan) throws IOException
+    {
+        if (scan == null || scan.getLength() == 0)
+        {
+            return new CSVRowIndex(indexInterval);
+        }
+        File indexFile = CSVRowIndex.getIndexFile(file);
+        if (indexFile.exists())
+        {
+            try
+            {
+                CSVRowIndex existing = CSVRowIndex.load(indexFile);
+                if (existing.getFileLength() < scan.getLength())
+                {
+                    existing.update(file);
+                }
+                if (existing.isValidFor(file)
+                        && existing.getFileLength() == scan.getLength()
+                        && existing.getRowCount() == scan.getRowCount())
+                {
+                    return existing;
+                }
+            }
+            catch (IOException ex)
+            {
+                Log.warning("Could not load csv index " + indexFile, ex);
+            }
+        }
+        return CSVRowIndex.build(file, charset, indexInterval);
+    }
+
+    /**
+     * Writes a field into the currently open file. If the command newline has
      * been called before, it also adds a new line before continue to write.
+     * The field is escaped directly into the output buffer (see CSVEscaper).
      * Note: if the first part to write in the file starts with "ID", an
-     * apostrophe is added before that to make it compatible with Excel.
+     * apostrophe is added before that to make it compatible with Excel (not
+     * if rows are appended to existing content).
      *
-     * @param s the string to write
+     * @param field the field to write
      * @return true if the writing operation was successful
      * @throws IllegalStateException in case the csv file is not opened yet.
      */
-    private boolean write(String s)
+    private boolean write(CharSequence field)
     {
-        if (writer == null)
+        if (output == null && !isClosedInBeforeRow)
         {
             throw new IllegalStateException("The csv file is not opened yet.");
         }
+        if (isCurrentLineEmpty && !isInBeforeRow)
+        {
+            boolean result;
+            isInBeforeRow = true;
+            try
+            {
+                result = beforeRow();
+            }
+            finally
+            {
+                isInBeforeRow = false;
+            }
+            isClosedInBeforeRow = output == null;
+            if (!result || output == null)
+            {
+                return false;
+            }
+        }
         try
         {
             if (waitForNewLine)
             {
-                writer.write(lineSeparator);
+                output.write(lineSeparator);
+                charsWritten += lineSeparator.length();
                 waitForNewLine = false;
             }
-            if (bytesWritten == 0 && s.startsWith("ID"))
+            if (!isCurrentLineEmpty)
             {
-                s = "'" + s;
+                output.write(fieldSeperator);
+                charsWritten += fieldSeperator.length();
             }
-            writer.write(s);
-            bytesWritten += s.length();
+            else
+            {
+                if (index != null && index.isIndexedRow(rowsWritten))
+                {
+                    index.addOffset(appendedLength + output.countBytes());
+                }
+                rowsWritten++;
+            }
+            charsWritten += output.writeField(field, fieldSeperator,
+                    lineSeparator, charsWritten == 0 && appendedLength == 0);
             isCurrentLineEmpty = false;
         }
         catch (IOException ex)
         {
+            lastError = ex;
             Log.error("Could not write into csv file", ex);
             return false;
         }
         return true;
     }
 
-    /**
-     * Converts an object into a string and surrounds it with double quotes if
-     * it contains double quotes, the field- or line-separator or a line-break.
-     *
-     * @param fieldO the object to convert (can be null -> "")
-     * @return the field as csv-string
-     */
-    private String handleField(Object fieldO)
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static void closeQuietly(FileChannel channel)
     {
-        String field = (fieldO == null) ? "" : fieldO.toString();
-        boolean needToEscape = field.contains("\"") || field.contains(
-                fieldSeperator) || field.contains(lineSeparator)
-                || field.contains("\n");
-        if (needToEscape)
+        if (channel != null)
         {
-            field = "\"" + field.replace("\"", "\"\"") + "\"";
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                Log.warning("Could not close csv file", ex);
+            }
         }
-        return field;
     }
 }
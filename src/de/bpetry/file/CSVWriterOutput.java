@@ -0,0 +1,83 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * CSV output that writes into a java.io.Writer. The writer does the encoding,
+ * therefore only characters are counted.
+ *
+ * @author Benjamin Petry
+ */
+class CSVWriterOutput extends CSVOutput
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final Writer writer;
+    private long charsWritten = 0;
+    private int charsNotFlushed = 0;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public CSVWriterOutput(Writer writer, int bufferSize,
+            CSVFlushPolicy flushPolicy, int flushThreshold)
+    {
+        super(bufferSize, flushPolicy, flushThreshold);
+        this.writer = writer;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public long getBytesWritten()
+    {
+        return charsWritten;
+    }
+
+    @Override
+    protected void drainChars() throws IOException
+    {
+        if (charCount > 0)
+        {
+            writer.write(chars, 0, charCount);
+            charsWritten += charCount;
+            charsNotFlushed += charCount;
+            charCount = 0;
+        }
+    }
+
+    @Override
+    protected void flushBytes() throws IOException
+    {
+        writer.flush();
+        charsNotFlushed = 0;
+    }
+
+    @Override
+    protected int getPendingBytes()
+    {
+        return charsNotFlushed;
+    }
+
+    @Override
+    protected boolean syncTarget()
+    {
+        return false;
+    }
+
+    @Override
+    protected void closeTarget() throws IOException
+    {
+        writer.close();
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of typed columns that are stored in primitive arrays. Integer columns
+ * are stored as int[] or long[], numbers as double[] and strings as
+ * dictionary codes (int[]). Missing values are 0 in integer columns, NaN in
+ * double columns and -1 in string columns, so integer columns are passed to
+ * the StatisticUtil together with their missing values (see getMissing()).
+ * The arrays have exactly the length of the table. Is created by the
+ * CSVColumnLoader.
+ *
+ * @author Benjamin Petry
+ */
+public class ColumnTable
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final String[] names;
+    private final Column[] columns;
+    private final int rowCount;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    ColumnTable(String[] names, Column[] columns, int rowCount)
+    {
+        this.names = names;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    public int getColumnCount()
+    {
+        return columns.length;
+    }
+
+    public String getColumnName(int col)
+    {
+        return names[col];
+    }
+
+    /**
+     * @param name the name of a column
+     * @return the index of the column or -1 if there is no such column
+     */
+    public int getColumnIndex(String name)
+    {
+        for (int n = 0; n < names.length; n++)
+        {
+            if (names[n].equals(name))
+            {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the type of the column (INT, LONG, DOUBLE or STRING)
+     */
+    public ColumnType getType(int col)
+    {
+        return columns[col].type;
+    }
+
+    public boolean isMissing(int col, int row)
+    {
+        return columns[col].missing.get(row);
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the indices of the rows with missing values (a copy)
+     */
+    public BitSet getMissing(int col)
+    {
+        return (BitSet) columns[col].missing.clone();
+    }
+
+    public int getMissingCount(int col)
+    {
+        return columns[col].missing.cardinality();
+    }
+
+    /**
+     * @param col the index of a column of type INT
+     * @return the values of the column (not copied)
+     */
+    public int[] getInts(int col)
+    {
+        return columnOfType(col, ColumnType.INT).ints;
+    }
+
+    /**
+     * @param col the index of a column of type LONG
+     * @return the values of the column (not copied)
+     */
+    public long[] getLongs(int col)
+    {
+        return columnOfType(col, ColumnType.LONG).longs;
+    }
+
+    /**
+     * @param col the index of a column of type DOUBLE
+     * @return the values of the column (not copied)
+     */
+    public double[] getDoubles(int col)
+    {
+        return columnOfType(col, ColumnType.DOUBLE).doubles;
+    }
+
+    /**
+     * @param col the index of a column of type STRING
+     * @return the dictionary codes of the column (not copied)
+     */
+    public int[] getCodes(int col)
+    {
+        return columnOfType(col, ColumnType.STRING).ints;
+    }
+
+    /**
+     * @param col the index of a column of type STRING
+     * @return the distinct values of the column. The code of a value is its
+     * index.
+     */
+    public String[] getDictionary(int col)
+    {
+        List<String> dictionary = columnOfType(col, ColumnType.STRING).dictionaryValues;
+        return dictionary.toArray(new String[dictionary.size()]);
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Converts a numeric column into doubles. Missing values are NaN.
+     *
+     * @param col the index of a column of type INT, LONG or DOUBLE
+     * @return the values of the column (a copy for INT and LONG columns)
+     */
+    public double[] toDoubles(int col)
+    {
+        Column column = columns[col];
+        switch (column.type)
+        {
+            case INT:
+            case LONG:
+                double[] values = new double[rowCount];
+                for (int n = 0; n < rowCount; n++)
+                {
+                    values[n] = column.missing.get(n) ? Double.NaN
+                            : (column.type == ColumnType.INT ? column.ints[n]
+                                    : column.longs[n]);
+                }
+                return values;
+            case DOUBLE:
+                return column.doubles;
+            default:
+                throw new IllegalArgumentException("Column " + col
+                        + " is not numeric");
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private Column columnOfType(int col, ColumnType type)
+    {
+        Column column = columns[col];
+        if (column.type != type)
+        {
+            throw new IllegalArgumentException("Column " + col + " is of type "
+                    + column.type + ", not " + type);
+        }
+        return column;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Growable column that is filled by the CSVColumnLoader. Only the array of
+     * the current type is allocated. Values are widened to long, double or
+     * string values if necessary. Strings are stored as codes in the int
+     * array. The original text of numbers is not kept, so a column that has
+     * been widened to strings has to be read again (see
+     * isWidenedToString()).
+     */
+    static class Column
+    {
+
+        private ColumnType type;
+        private int size = 0;
+        private int capacity = 1024;
+        private int[] ints = new int[0];
+        private long[] longs = new long[0];
+        private double[] doubles = new double[0];
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> dictionaryValues = new ArrayList<>();
+        private final BitSet missing = new BitSet();
+        private boolean isWidenedToString = false;
+
+        public Column(ColumnType type)
+        {
+            this.type = type;
+            allocate(type);
+        }
+
+        public ColumnType getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return true if numbers have been widened to strings. The codes
+         * of the column are invalid then and it has to be read again as a
+         * STRING column.
+         */
+        public boolean isWidenedToString()
+        {
+            return isWidenedToString;
+        }
+
+        public void addMissing()
+        {
+            ensureCapacity();
+            missing.set(size);
+            switch (type)
+            {
+                case DOUBLE:
+                    doubles[size++] = Double.NaN;
+                    break;
+                case STRING:
+                    ints[size++] = -1;
+                    break;
+                case LONG:
+                    longs[size++] = 0;
+                    break;
+                default:
+                    ints[size++] = 0;
+                    break;
+            }
+        }
+
+        /**
+         * Adds the value of a field of the current row of a reader. The
+         * column is widened if the value does not fit its type (each case
+         * falls through to the next wider type).
+         *
+         * @param reader the reader
+         * @param field the index of the field
+         */
+        @SuppressWarnings("fallthrough")
+        public void add(CSVReader reader, int field)
+        {
+            ensureCapacity();
+            switch (type)
+            {
+                case INT:
+                    try
+                    {
+                        ints[size] = reader.getInt(field);
+                        size++;
+                        return;
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        widen(ColumnType.LONG);
+                    }
+                case LONG:
+                    try
+                    {
+                        longs[size] = reader.getLong(field);
+                        size++;
+                        return;
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        widen(ColumnType.DOUBLE);
+                    }
+                case DOUBLE:
+                    try
+                    {
+                        doubles[size] = reader.getDouble(field);
+                        size++;
+                        return;
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        widen(ColumnType.STRING);
+                    }
+                default:
+                    ints[size++] = isWidenedToString ? -1
+                            : code(reader.getString(field));
+            }
+        }
+
+        /**
+         * Shrinks the array of the column to the number of values.
+         */
+        public void trim()
+        {
+            capacity = size;
+            resize();
+        }
+
+        /**
+         * Converts the values into the given (wider) type. Missing values
+         * become NaN or -1. Numbers cannot be converted into their original
+         * text, so a column that is widened to strings only keeps track of
+         * its size (see isWidenedToString()).
+         */
+        private void widen(ColumnType target)
+        {
+            allocate(target);
+            for (int n = 0; n < size; n++)
+            {
+                boolean isMissing = missing.get(n);
+                switch (target)
+                {
+                    case LONG:
+                        longs[n] = ints[n];
+                        break;
+                    case DOUBLE:
+                        doubles[n] = isMissing ? Double.NaN
+                                : (type == ColumnType.INT ? ints[n] : longs[n]);
+                        break;
+                    default:
+                        ints[n] = -1;
+                        break;
+                }
+            }
+            if (type == ColumnType.INT && target != ColumnType.STRING)
+            {
+                ints = new int[0];
+            }
+            longs = (type == ColumnType.LONG) ? new long[0] : longs;
+            doubles = (type == ColumnType.DOUBLE) ? new double[0] : doubles;
+            isWidenedToString = target == ColumnType.STRING;
+            type = target;
+        }
+
+        private int code(String value)
+        {
+            Integer code = dictionary.get(value);
+            if (code == null)
+            {
+                code = dictionaryValues.size();
+                dictionary.put(value, code);
+                dictionaryValues.add(value);
+            }
+            return code;
+        }
+
+        private void ensureCapacity()
+        {
+            if (size == capacity)
+            {
+                capacity *= 2;
+                resize();
+            }
+        }
+
+        private void resize()
+        {
+            switch (type)
+            {
+                case LONG:
+                    longs = Arrays.copyOf(longs, capacity);
+                    break;
+                case DOUBLE:
+                    doubles = Arrays.copyOf(doubles, capacity);
+                    break;
+                default:
+                    ints = Arrays.copyOf(ints, capacity);
+                    break;
+            }
+        }
+
+        /**
+         * Creates the array for values of the given type.
+         */
+        private void allocate(ColumnType target)
+        {
+            switch (target)
+            {
+                case LONG:
+                    longs = new long[capacity];
+                    break;
+                case DOUBLE:
+                    doubles = new double[capacity];
+                    break;
+                default:
+                    ints = Arrays.copyOf(ints, capacity);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+/**
+ * Describes the type of a column in a columnar file
+ *
+ * @author Benjamin Petry
+ */
+public enum ColumnType
+{
+
+    NULL, // all values are null
+    INT, // 32 bit integers
+    LONG, // 64 bit integers
+    DOUBLE, // 64 bit floating point numbers
+    BOOLEAN, // booleans stored as bitmap
+    STRING // dictionary-encoded strings
+}
@@ -0,0 +1,640 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads files that have been written by the ColumnarWriter. The file is read
+ * row group by row group. The rows of the current row group can be accessed
+ * with a cursor (next(), getInt(), getString(), ...) or column-wise by the
+ * primitive arrays of a column (getInts(), getDoubles(), ...), which are
+ * decoded in bulk without boxing.
+ *
+ * @author Benjamin Petry
+ */
+public class ColumnarReader
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private FileChannel channel = null;
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final List<Column> columns = new ArrayList<>();
+    private int columnCount = 0;
+    private int rowGroupSize = 0;
+    private int row = -1;
+    private boolean isEndOfFile = false;
+    private IOException lastError = null;
+    private final NumberChars numberChars = new NumberChars();
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ColumnarReader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public ColumnarReader(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return the exception of the last failed operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * @return the number of columns of the current row group
+     */
+    public int getColumnCount()
+    {
+        return columnCount;
+    }
+
+    /**
+     * @return the number of rows of the current row group
+     */
+    public int getRowGroupSize()
+    {
+        return rowGroupSize;
+    }
+
+    /**
+     * @return the index of the current row within the current row group
+     */
+    public int getRowIndex()
+    {
+        return row;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean open()
+    {
+        close();
+        try
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            readHeader();
+            if (header.getInt() != ColumnarWriter.MAGIC)
+            {
+                throw new IOException("The file is not a columnar file.");
+            }
+            int version = header.getInt();
+            if (version != ColumnarWriter.VERSION)
+            {
+                throw new IOException("Unsupported columnar file version " + version);
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open columnar file for reading", ex);
+            close();
+            return false;
+        }
+        columnCount = 0;
+        rowGroupSize = 0;
+        row = -1;
+        isEndOfFile = false;
+        return true;
+    }
+
+    public boolean close()
+    {
+        if (channel == null)
+        {
+            return true;
+        }
+        try
+        {
+            channel.close();
+            return true;
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not close columnar file", ex);
+            return false;
+        }
+        finally
+        {
+            channel = null;
+        }
+    }
+
+    /**
+     * Moves the cursor to the next row. Reads the next row group if needed.
+     *
+     * @return false if there are no more rows (or the file could not be read)
+     * @throws IllegalStateException in case the file is not opened yet.
+     */
+    public boolean next()
+    {
+        if (row + 1 < rowGroupSize)
+        {
+            row++;
+            return true;
+        }
+        while (nextRowGroup())
+        {
+            if (rowGroupSize > 0)
+            {
+                row = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next row group. The cursor is placed before its first row.
+     *
+     * @return false if there are no more row groups (or the file could not be
+     * read)
+     * @throws IllegalStateException in case the file is not opened yet.
+     */
+    public boolean nextRowGroup()
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("The columnar file is not opened yet.");
+        }
+        row = -1;
+        rowGroupSize = 0;
+        columnCount = 0;
+        if (isEndOfFile)
+        {
+            return false;
+        }
+        try
+        {
+            header.clear().limit(4);
+            readFully(header);
+            header.flip();
+            int rows = header.getInt();
+            if (rows == 0)
+            {
+                isEndOfFile = true;
+                return false;
+            }
+            header.clear().limit(4);
+            readFully(header);
+            header.flip();
+            int count = header.getInt();
+            for (int n = 0; n < count; n++)
+            {
+                header.clear().limit(4);
+                readFully(header);
+                header.flip();
+                readChunk(header.getInt());
+                if (columns.size() == n)
+                {
+                    columns.add(new Column());
+                }
+                columns.get(n).decode(buffer, rows);
+            }
+            rowGroupSize = rows;
+            columnCount = count;
+            return true;
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not read from columnar file", ex);
+            isEndOfFile = true;
+            return false;
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the type of the column in the current row group
+     */
+    public ColumnType getType(int col)
+    {
+        return column(col).type;
+    }
+
+    public boolean isNull(int col)
+    {
+        Column c = column(col);
+        return c.type == ColumnType.NULL
+                || (c.nulls != null && (c.nulls[row >> 6] & (1L << row)) != 0);
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as int (0 for null values)
+     */
+    public int getInt(int col)
+    {
+        Column c = column(col);
+        switch (c.type)
+        {
+            case INT:
+                return c.ints[row];
+            case LONG:
+                return (int) c.longs[row];
+            case DOUBLE:
+                return (int) c.doubles[row];
+            case BOOLEAN:
+                return getBoolean(col) ? 1 : 0;
+            case STRING:
+                return isNull(col) ? 0 : Integer.parseInt(getString(col));
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as long (0 for null values)
+     */
+    public long getLong(int col)
+    {
+        Column c = column(col);
+        switch (c.type)
+        {
+            case LONG:
+                return c.longs[row];
+            case DOUBLE:
+                return (long) c.doubles[row];
+            case STRING:
+                return isNull(col) ? 0 : Long.parseLong(getString(col));
+            default:
+                return getInt(col);
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as double (0 for null values)
+     */
+    public double getDouble(int col)
+    {
+        Column c = column(col);
+        switch (c.type)
+        {
+            case DOUBLE:
+                return c.doubles[row];
+            case STRING:
+                return isNull(col) ? 0 : Double.parseDouble(getString(col));
+            default:
+                return getLong(col);
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as boolean (false for null values)
+     */
+    public boolean getBoolean(int col)
+    {
+        Column c = column(col);
+        switch (c.type)
+        {
+            case BOOLEAN:
+                return (c.longs[row >> 6] & (1L << row)) != 0;
+            case STRING:
+                return "true".equals(getString(col));
+            default:
+                return getLong(col) != 0;
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as string (null for null values)
+     */
+    public String getString(int col)
+    {
+        if (isNull(col))
+        {
+            return null;
+        }
+        Column c = column(col);
+        switch (c.type)
+        {
+            case STRING:
+                return c.dictionary[c.ints[row]];
+            case DOUBLE:
+                return numberChars.set(c.doubles[row]).toString();
+            case BOOLEAN:
+                return getBoolean(col) ? "true" : "false";
+            default:
+                return Long.toString(getLong(col));
+        }
+    }
+
+    /**
+     * @param col the index of the column
+     * @return the value of the current row as Integer, Long, Double, Boolean
+     * or String (null for null values)
+     */
+    public Object getObject(int col)
+    {
+        if (isNull(col))
+        {
+            return null;
+        }
+        switch (column(col).type)
+        {
+            case INT:
+                return getInt(col);
+            case LONG:
+                return getLong(col);
+            case DOUBLE:
+                return getDouble(col);
+            case BOOLEAN:
+                return getBoolean(col);
+            default:
+                return getString(col);
+        }
+    }
+
+    /**
+     * The arrays returned by the bulk methods are reused for the next row
+     * group and may be longer than the row group.
+     *
+     * @param col the index of a column of type INT
+     * @return the values of the current row group
+     */
+    public int[] getInts(int col)
+    {
+        return columnOfType(col, ColumnType.INT).ints;
+    }
+
+    /**
+     * @param col the index of a column of type LONG
+     * @return the values of the current row group
+     */
+    public long[] getLongs(int col)
+    {
+        return columnOfType(col, ColumnType.LONG).longs;
+    }
+
+    /**
+     * @param col the index of a column of type DOUBLE
+     * @return the values of the current row group
+     */
+    public double[] getDoubles(int col)
+    {
+        return columnOfType(col, ColumnType.DOUBLE).doubles;
+    }
+
+    /**
+     * @param col the index of a column of type STRING
+     * @return the dictionary codes of the current row group (see
+     * getDictionary())
+     */
+    public int[] getCodes(int col)
+    {
+        return columnOfType(col, ColumnType.STRING).ints;
+    }
+
+    /**
+     * @param col the index of a column of type STRING
+     * @return the distinct values of the column in the current row group
+     */
+    public String[] getDictionary(int col)
+    {
+        Column c = columnOfType(col, ColumnType.STRING);
+        return Arrays.copyOf(c.dictionary, c.dictionarySize);
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////  Package Static Methods /////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param dictionarySize the number of distinct values
+     * @return the number of bytes of a dictionary code
+     */
+    static int codeWidth(int dictionarySize)
+    {
+        if (dictionarySize <= 0x100)
+        {
+            return 1;
+        }
+        return dictionarySize <= 0x10000 ? 2 : 4;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private Column column(int col)
+    {
+        if (row < 0 || row >= rowGroupSize)
+        {
+            throw new IllegalStateException("There is no current row.");
+        }
+        if (col < 0 || col >= columnCount)
+        {
+            throw new IndexOutOfBoundsException("Column " + col
+                    + " does not exist (columns: " + columnCount + ")");
+        }
+        return columns.get(col);
+    }
+
+    private Column columnOfType(int col, ColumnType type)
+    {
+        if (col < 0 || col >= columnCount)
+        {
+            throw new IndexOutOfBoundsException("Column " + col
+                    + " does not exist (columns: " + columnCount + ")");
+        }
+        Column c = columns.get(col);
+        if (c.type != type)
+        {
+            throw new IllegalArgumentException("Column " + col + " is of type "
+                    + c.type + ", not " + type);
+        }
+        return c;
+    }
+
+    private void readHeader() throws IOException
+    {
+        header.clear();
+        readFully(header);
+        header.flip();
+    }
+
+    private void readChunk(int length) throws IOException
+    {
+        if (buffer.capacity() < length)
+        {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear().limit(length);
+        readFully(buffer);
+        buffer.flip();
+    }
+
+    private void readFully(ByteBuffer target) throws IOException
+    {
+        while (target.hasRemaining())
+        {
+            if (channel.read(target) < 0)
+            {
+                throw new EOFException("Unexpected end of columnar file");
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * The decoded values of one column of the current row group. The arrays
+     * are reused for the following row groups.
+     */
+    private static class Column
+    {
+
+        private ColumnType type = ColumnType.NULL;
+        private long[] nulls = null;
+        private long[] nullWords = new long[0];
+        private int[] ints = new int[0];
+        private long[] longs = new long[0];
+        private double[] doubles = new double[0];
+        private String[] dictionary = new String[0];
+        private int dictionarySize = 0;
+        private byte[] bytes = new byte[64];
+
+        public void decode(ByteBuffer buffer, int rows) throws IOException
+        {
+            int typeIndex = buffer.get();
+            if (typeIndex < 0 || typeIndex >= ColumnType.values().length)
+            {
+                throw new IOException("Unknown column type " + typeIndex);
+            }
+            type = ColumnType.values()[typeIndex];
+            int words = (rows + 63) >> 6;
+            if (buffer.get() != 0)
+            {
+                if (nullWords.length < words)
+                {
+                    nullWords = new long[words];
+                }
+                buffer.asLongBuffer().get(nullWords, 0, words);
+                buffer.position(buffer.position() + 8 * words);
+                nulls = nullWords;
+            }
+            else
+            {
+                nulls = null;
+            }
+            switch (type)
+            {
+                case INT:
+                    if (ints.length < rows)
+                    {
+                        ints = new int[rows];
+                    }
+                    buffer.asIntBuffer().get(ints, 0, rows);
+                    break;
+                case LONG:
+                    if (longs.length < rows)
+                    {
+                        longs = new long[rows];
+                    }
+                    buffer.asLongBuffer().get(longs, 0, rows);
+                    break;
+                case DOUBLE:
+                    if (doubles.length < rows)
+                    {
+                        doubles = new double[rows];
+                    }
+                    buffer.asDoubleBuffer().get(doubles, 0, rows);
+                    break;
+                case BOOLEAN:
+                    if (longs.length < words)
+                    {
+                        longs = new long[words];
+                    }
+                    buffer.asLongBuffer().get(longs, 0, words);
+                    break;
+                case STRING:
+                    decodeStrings(buffer, rows);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void decodeStrings(ByteBuffer buffer, int rows)
+        {
+            dictionarySize = buffer.getInt();
+            int width = buffer.get();
+            if (dictionary.length < dictionarySize)
+            {
+                dictionary = new String[dictionarySize];
+            }
+            for (int n = 0; n < dictionarySize; n++)
+            {
+                int length = buffer.getInt();
+                if (bytes.length < length)
+                {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                buffer.get(bytes, 0, length);
+                dictionary[n] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            if (ints.length < rows)
+            {
+                ints = new int[rows];
+            }
+            if (width == 4)
+            {
+                buffer.asIntBuffer().get(ints, 0, rows);
+            }
+            else if (width == 2)
+            {
+                for (int n = 0; n < rows; n++)
+                {
+                    ints[n] = buffer.getShort() & 0xffff;
+                }
+            }
+            else
+            {
+                for (int n = 0; n < rows; n++)
+                {
+                    ints[n] = buffer.get() & 0xff;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rows into a compact binary columnar file. It is used like the
+ * CSVWriter (print/println/newLine), but stores the rows in groups of typed
+ * column chunks: primitive arrays for numbers, bitmaps for booleans and
+ * dictionary-encoded strings. Null values are stored in a bitmap. The type of
+ * a column chunk is derived from its values; mixed numbers are widened
+ * (int - long - double), any other mix is stored as strings using the same
+ * text as the CSVWriter. Use the ColumnarReader to read the file.
+ *
+ * File layout (big endian): MAGIC, VERSION, then row groups of [int rows, int
+ * columns, per column: int length, chunk], terminated by a row count of 0. A
+ * chunk contains [byte type, byte hasNulls, (long[] null bitmap), data].
+ *
+ * @author Benjamin Petry
+ */
+public class ColumnarWriter
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int MAGIC = 0x42504331; // "BPC1"
+    final public static int VERSION = 1;
+    final public static int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private int rowGroupSize = DEFAULT_ROW_GROUP_SIZE;
+    private FileChannel channel = null;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final List<ColumnBuffer> columns = new ArrayList<>();
+    private int columnCount = 0;
+    private int rowCount = 0;
+    private int fieldIndex = 0;
+    private long rowsWritten = 0;
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ColumnarWriter(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public ColumnarWriter(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int getRowGroupSize()
+    {
+        return rowGroupSize;
+    }
+
+    /**
+     * @param rowGroupSize the number of rows that are collected before they
+     * are written as column chunks
+     */
+    public void setRowGroupSize(int rowGroupSize)
+    {
+        this.rowGroupSize = Math.max(rowGroupSize, 1);
+    }
+
+    public long getRowsWritten()
+    {
+        return rowsWritten;
+    }
+
+    /**
+     * @return the exception of the last failed operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean open()
+    {
+        close();
+        try
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION);
+            writeBuffer();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open columnar file for writing", ex);
+            closeChannel();
+            return false;
+        }
+        columns.clear();
+        columnCount = 0;
+        rowCount = 0;
+        fieldIndex = 0;
+        rowsWritten = 0;
+        return true;
+    }
+
+    /**
+     * Completes a pending row, writes the last row group and closes the file.
+     *
+     * @return true if the file could be written and closed
+     */
+    public boolean close()
+    {
+        if (channel == null)
+        {
+            return true;
+        }
+        boolean result = newLine();
+        try
+        {
+            result &= writeRowGroup();
+            buffer.clear();
+            buffer.putInt(0);
+            writeBuffer();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not write into columnar file", ex);
+            result = false;
+        }
+        return closeChannel() && result;
+    }
+
+    public boolean print(Collection<? extends Object> fields)
+    {
+        for (Object field : fields)
+        {
+            print(field);
+        }
+        return true;
+    }
+
+    public boolean print(Object... fields)
+    {
+        for (Object field : fields)
+        {
+            print(field);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a field to the current row. Numbers, booleans and character
+     * sequences keep their type, other objects are stored as strings.
+     *
+     * @param fieldO the field (null is stored as null)
+     * @return always true
+     */
+    public boolean print(Object fieldO)
+    {
+        if (fieldO == null)
+        {
+            nextColumn().addNull();
+            return true;
+        }
+        if (fieldO instanceof Integer || fieldO instanceof Short || fieldO instanceof Byte)
+        {
+            return print(((Number) fieldO).intValue());
+        }
+        if (fieldO instanceof Long)
+        {
+            return print(((Long) fieldO).longValue());
+        }
+        if (fieldO instanceof Double || fieldO instanceof Float)
+        {
+            return print(((Number) fieldO).doubleValue());
+        }
+        if (fieldO instanceof Boolean)
+        {
+            return print(((Boolean) fieldO).booleanValue());
+        }
+        return print(fieldO.toString());
+    }
+
+    public boolean print(CharSequence field)
+    {
+        if (field == null)
+        {
+            nextColumn().addNull();
+        }
+        else
+        {
+            nextColumn().addString(field.toString());
+        }
+        return true;
+    }
+
+    public boolean print(int field)
+    {
+        nextColumn().addLong(field, true);
+        return true;
+    }
+
+    public boolean print(long field)
+    {
+        nextColumn().addLong(field, false);
+        return true;
+    }
+
+    public boolean print(double field)
+    {
+        nextColumn().addDouble(field);
+        return true;
+    }
+
+    public boolean print(boolean field)
+    {
+        nextColumn().addBoolean(field);
+        return true;
+    }
+
+    public boolean println(Collection<? extends Object> fields)
+    {
+        return print(fields) && newLine();
+    }
+
+    public boolean println(Object... fields)
+    {
+        return print(fields) && newLine();
+    }
+
+    public boolean println(Object field)
+    {
+        return print(field) && newLine();
+    }
+
+    /**
+     * Completes the current row. Missing fields are stored as null. A row
+     * without fields is ignored. If the row group is full, it is written into
+     * the file.
+     *
+     * @return true if the row group could be written (or was not full yet)
+     * @throws IllegalStateException in case the file is not opened yet.
+     */
+    public boolean newLine()
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("The columnar file is not opened yet.");
+        }
+        if (fieldIndex == 0)
+        {
+            return true;
+        }
+        for (int n = fieldIndex; n < columnCount; n++)
+        {
+            columns.get(n).addNull();
+        }
+        fieldIndex = 0;
+        rowCount++;
+        if (rowCount < rowGroupSize)
+        {
+            return true;
+        }
+        try
+        {
+            return writeRowGroup();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not write into columnar file", ex);
+            return false;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the column of the next field. New columns are filled with nulls
+     * for the previous rows of the row group.
+     */
+    private ColumnBuffer nextColumn()
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("The columnar file is not opened yet.");
+        }
+        if (fieldIndex == columnCount)
+        {
+            if (columns.size() == columnCount)
+            {
+                columns.add(new ColumnBuffer());
+            }
+            ColumnBuffer column = columns.get(columnCount);
+            column.reset();
+            for (int n = 0; n < rowCount; n++)
+            {
+                column.addNull();
+            }
+            columnCount++;
+        }
+        return columns.get(fieldIndex++);
+    }
+
+    private boolean writeRowGroup() throws IOException
+    {
+        if (rowCount == 0)
+        {
+            return true;
+        }
+        buffer.clear();
+        buffer.putInt(rowCount).putInt(columnCount);
+        for (int n = 0; n < columnCount; n++)
+        {
+            ColumnBuffer column = columns.get(n);
+            ensureCapacity(4 + column.getMaxEncodedLength());
+            int lengthPosition = buffer.position();
+            buffer.putInt(0);
+            column.encode(buffer);
+            buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+            column.reset();
+        }
+        writeBuffer();
+        rowsWritten += rowCount;
+        rowCount = 0;
+        columnCount = 0;
+        return true;
+    }
+
+    private void ensureCapacity(int additional)
+    {
+        if (buffer.remaining() < additional)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                    buffer.capacity() * 2, buffer.position() + additional));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private boolean closeChannel()
+    {
+        if (channel == null)
+        {
+            return true;
+        }
+        try
+        {
+            channel.close();
+            return true;
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not close columnar file", ex);
+            return false;
+        }
+        finally
+        {
+            channel = null;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * The values of one column in the current row group. Integers and
+     * booleans are kept in a long array, doubles in a double array and strings
+     * as dictionary codes.
+     */
+    private static class ColumnBuffer
+    {
+
+        private ColumnType type = ColumnType.NULL;
+        private int size = 0;
+        private boolean hasNulls = false;
+        private long[] nulls = new long[16];
+        private long[] longs = new long[1024];
+        private double[] doubles = null;
+        private int[] codes = null;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> dictionaryValues = new ArrayList<>();
+        private final NumberChars numberChars = new NumberChars();
+
+        public void reset()
+        {
+            type = ColumnType.NULL;
+            size = 0;
+            if (hasNulls)
+            {
+                Arrays.fill(nulls, 0);
+                hasNulls = false;
+            }
+            dictionary.clear();
+            dictionaryValues.clear();
+        }
+
+        public void addNull()
+        {
+            ensureCapacity();
+            nulls[size >> 6] |= 1L << size;
+            hasNulls = true;
+            switch (type)
+            {
+                case DOUBLE:
+                    doubles[size] = 0;
+                    break;
+                case STRING:
+                    codes[size] = 0;
+                    break;
+                default:
+                    longs[size] = 0;
+                    break;
+            }
+            size++;
+        }
+
+        public void addLong(long value, boolean isInt)
+        {
+            ensureCapacity();
+            switch (type)
+            {
+                case NULL:
+                    type = isInt ? ColumnType.INT : ColumnType.LONG;
+                    longs[size++] = value;
+                    break;
+                case INT:
+                case LONG:
+                    if (!isInt || value != (int) value)
+                    {
+                        type = ColumnType.LONG;
+                    }
+                    longs[size++] = value;
+                    break;
+                case DOUBLE:
+                    doubles[size++] = value;
+                    break;
+                default:
+                    toStrings();
+                    codes[size++] = code(Long.toString(value));
+                    break;
+            }
+        }
+
+        public void addDouble(double value)
+        {
+            ensureCapacity();
+            if (type == ColumnType.NULL || type == ColumnType.INT || type == ColumnType.LONG)
+            {
+                toDoubles();
+            }
+            if (type == ColumnType.DOUBLE)
+            {
+                doubles[size++] = value;
+            }
+            else
+            {
+                toStrings();
+                codes[size++] = code(numberChars.set(value).toString());
+            }
+        }
+
+        public void addBoolean(boolean value)
+        {
+            ensureCapacity();
+            if (type == ColumnType.NULL)
+            {
+                type = ColumnType.BOOLEAN;
+            }
+            if (type == ColumnType.BOOLEAN)
+            {
+                longs[size++] = value ? 1 : 0;
+            }
+            else
+            {
+                toStrings();
+                codes[size++] = code(value ? "true" : "false");
+            }
+        }
+
+        public void addString(String value)
+        {
+            ensureCapacity();
+            toStrings();
+            codes[size++] = code(value);
+        }
+
+        public int getMaxEncodedLength()
+        {
+            int length = 2 + (hasNulls ? 8 * words() : 0);
+            switch (type)
+            {
+                case INT:
+                    return length + 4 * size;
+                case LONG:
+                case DOUBLE:
+                    return length + 8 * size;
+                case BOOLEAN:
+                    return length + 8 * words();
+                case STRING:
+                    length += 5 + 4 * size;
+                    for (String value : dictionaryValues)
+                    {
+                        length += 4 + 3 * value.length();
+                    }
+                    return length;
+                default:
+                    return length;
+            }
+        }
+
+        public void encode(ByteBuffer buffer)
+        {
+            buffer.put((byte) type.ordinal());
+            buffer.put((byte) (hasNulls ? 1 : 0));
+            if (hasNulls)
+            {
+                buffer.asLongBuffer().put(nulls, 0, words());
+                buffer.position(buffer.position() + 8 * words());
+            }
+            switch (type)
+            {
+                case INT:
+                    for (int n = 0; n < size; n++)
+                    {
+                        buffer.putInt((int) longs[n]);
+                    }
+                    break;
+                case LONG:
+                    buffer.asLongBuffer().put(longs, 0, size);
+                    buffer.position(buffer.position() + 8 * size);
+                    break;
+                case DOUBLE:
+                    buffer.asDoubleBuffer().put(doubles, 0, size);
+                    buffer.position(buffer.position() + 8 * size);
+                    break;
+                case BOOLEAN:
+                    for (int w = 0; w < words(); w++)
+                    {
+                        long word = 0;
+                        for (int n = w << 6; n < Math.min(size, (w + 1) << 6); n++)
+                        {
+                            word |= longs[n] << n;
+                        }
+                        buffer.putLong(word);
+                    }
+                    break;
+                case STRING:
+                    encodeStrings(buffer);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void encodeStrings(ByteBuffer buffer)
+        {
+            int dictionarySize = dictionaryValues.size();
+            int width = ColumnarReader.codeWidth(dictionarySize);
+            buffer.putInt(dictionarySize);
+            buffer.put((byte) width);
+            for (String value : dictionaryValues)
+            {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+            for (int n = 0; n < size; n++)
+            {
+                if (width == 1)
+                {
+                    buffer.put((byte) codes[n]);
+                }
+                else if (width == 2)
+                {
+                    buffer.putShort((short) codes[n]);
+                }
+                else
+                {
+                    buffer.putInt(codes[n]);
+                }
+            }
+        }
+
+        private int words()
+        {
+            return (size + 63) >> 6;
+        }
+
+        private void ensureCapacity()
+        {
+            if ((size >> 6) >= nulls.length)
+            {
+                nulls = Arrays.copyOf(nulls, nulls.length * 2);
+            }
+            if (size == longs.length)
+            {
+                longs = Arrays.copyOf(longs, size * 2);
+            }
+            if (doubles != null && size == doubles.length)
+            {
+                doubles = Arrays.copyOf(doubles, size * 2);
+            }
+            if (codes != null && size == codes.length)
+            {
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+        }
+
+        private void toDoubles()
+        {
+            if (doubles == null || doubles.length < longs.length)
+            {
+                doubles = new double[longs.length];
+            }
+            for (int n = 0; n < size; n++)
+            {
+                doubles[n] = longs[n];
+            }
+            type = ColumnType.DOUBLE;
+        }
+
+        /**
+         * Converts the values of the chunk into strings using the same text
+         * as the CSVWriter (nulls stay null).
+         */
+        private void toStrings()
+        {
+            if (type == ColumnType.STRING)
+            {
+                return;
+            }
+            if (codes == null || codes.length < longs.length)
+            {
+                codes = new int[longs.length];
+            }
+            for (int n = 0; n < size; n++)
+            {
+                if ((nulls[n >> 6] & (1L << n)) != 0)
+                {
+                    codes[n] = 0;
+                    continue;
+                }
+                switch (type)
+                {
+                    case DOUBLE:
+                        codes[n] = code(numberChars.set(doubles[n]).toString());
+                        break;
+                    case BOOLEAN:
+                        codes[n] = code(longs[n] != 0 ? "true" : "false");
+                        break;
+                    default:
+                        codes[n] = code(Long.toString(longs[n]));
+                        break;
+                }
+            }
+            type = ColumnType.STRING;
+        }
+
+        private int code(String value)
+        {
+            Integer code = dictionary.get(value);
+            if (code == null)
+            {
+                code = dictionaryValues.size();
+                dictionary.put(value, code);
+                dictionaryValues.add(value);
+            }
+            return code;
+        }
+    }
+}
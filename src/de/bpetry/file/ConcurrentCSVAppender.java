@@ -0,0 +1,474 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes rows of many threads into one csv file. Every thread builds its rows
+ * in its own reusable buffer. Completed rows are encoded by the thread itself
+ * and written with a positional write into a region of the file that is
+ * reserved with a single atomic operation, so threads never wait for each
+ * other. Rows are never interleaved. The rows of one thread keep their order,
+ * rows of different threads are interleaved batch-wise. The same quoting
+ * rules as for the CSVWriter apply.
+ *
+ * @author Benjamin Petry
+ */
+public class ConcurrentCSVAppender
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private String lineSeparator = System.getProperty("line.separator");
+    private Charset charset = StandardCharsets.UTF_8;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private FileChannel channel = null;
+    private ThreadLocal<RowBuffer> buffers = null;
+    private final Queue<RowBuffer> allBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong position = new AtomicLong();
+    private byte[] lineSeparatorBytes;
+    private volatile IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ConcurrentCSVAppender(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public ConcurrentCSVAppender(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public String getLineSeparator()
+    {
+        return lineSeparator;
+    }
+
+    public void setLineSeparator(String lineSeparator)
+    {
+        this.lineSeparator = lineSeparator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of chars a thread collects before its completed rows
+     * are written into the file. Takes effect with the next call of open().
+     *
+     * @param batchSize the number of chars (use 0 to write every row
+     * immediately)
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the exception of the last failed operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * @return the number of bytes written or reserved so far
+     */
+    public long getBytesWritten()
+    {
+        return position.get();
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public boolean open()
+    {
+        close();
+        try
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open csv file for writing", ex);
+            channel = null;
+            return false;
+        }
+        position.set(0);
+        lineSeparatorBytes = lineSeparator.getBytes(charset);
+        allBuffers.clear();
+        final FileChannel openChannel = channel;
+        buffers = ThreadLocal.withInitial(() ->
+        {
+            RowBuffer buffer = new RowBuffer(openChannel);
+            allBuffers.add(buffer);
+            return buffer;
+        });
+        return true;
+    }
+
+    /**
+     * Writes the completed rows of all threads and closes the file. Rows that
+     * are not completed with newLine() are discarded. Producers must not add
+     * rows while the appender is closed.
+     *
+     * @return true if all rows could be written and the file could be closed
+     */
+    public boolean close()
+    {
+        if (channel == null)
+        {
+            return true;
+        }
+        boolean result = true;
+        for (RowBuffer buffer : allBuffers)
+        {
+            synchronized (buffer)
+            {
+                result &= buffer.flush();
+            }
+        }
+        allBuffers.clear();
+        buffers = null;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not close csv file", ex);
+            result = false;
+        }
+        finally
+        {
+            channel = null;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the completed rows of the calling thread into the file.
+     *
+     * @return true if the rows could be written
+     */
+    public boolean flush()
+    {
+        RowBuffer buffer = getBuffer();
+        synchronized (buffer)
+        {
+            return buffer.flush();
+        }
+    }
+
+    /**
+     * Adds a field to the current row of the calling thread.
+     *
+     * @param field the field (can be null -> "")
+     * @return always true
+     */
+    public boolean print(Object field)
+    {
+        RowBuffer buffer = getBuffer();
+        synchronized (buffer)
+        {
+            buffer.append(field);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the current row of the calling thread. It is written as soon
+     * as the thread's batch is full.
+     *
+     * @return true if the batch could be written (or was not written yet)
+     */
+    public boolean newLine()
+    {
+        RowBuffer buffer = getBuffer();
+        synchronized (buffer)
+        {
+            return buffer.endRow();
+        }
+    }
+
+    public boolean println(Collection<? extends Object> fields)
+    {
+        RowBuffer buffer = getBuffer();
+        synchronized (buffer)
+        {
+            for (Object field : fields)
+            {
+                buffer.append(field);
+            }
+            return buffer.endRow();
+        }
+    }
+
+    public boolean println(Object... fields)
+    {
+        RowBuffer buffer = getBuffer();
+        synchronized (buffer)
+        {
+            for (Object field : fields)
+            {
+                buffer.append(field);
+            }
+            return buffer.endRow();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private RowBuffer getBuffer()
+    {
+        ThreadLocal<RowBuffer> threadBuffers = buffers;
+        if (threadBuffers == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+        return threadBuffers.get();
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * The rows of a single thread. Contains completed rows (separated by the
+     * line separator) followed by the row that is currently built.
+     */
+    private class RowBuffer
+    {
+
+        private final FileChannel target;
+        private final CharsetEncoder encoder;
+        private final NumberChars numberChars = new NumberChars();
+        private final int prefixRoom;
+        private char[] chars = new char[Math.max(batchSize, 256) + 256];
+        private int charCount = 0;
+        private int rowStart = 0;
+        private boolean isCurrentLineEmpty = true;
+        private ByteBuffer bytes;
+
+        public RowBuffer(FileChannel target)
+        {
+            this.target = target;
+            this.encoder = charset.newEncoder().onMalformedInput(
+                    CodingErrorAction.REPLACE).onUnmappableCharacter(
+                    CodingErrorAction.REPLACE);
+            this.prefixRoom = Math.max(lineSeparatorBytes.length, 1);
+            this.bytes = ByteBuffer.allocateDirect(prefixRoom + (int) (chars.length * encoder.maxBytesPerChar()));
+        }
+
+        public void append(Object field)
+        {
+            CharSequence s;
+            if (field == null)
+            {
+                s = "";
+            }
+            else if (field instanceof CharSequence)
+            {
+                s = (CharSequence) field;
+            }
+            else if (field instanceof Integer || field instanceof Long || field instanceof Short || field instanceof Byte)
+            {
+                s = numberChars.set(((Number) field).longValue());
+            }
+            else if (field instanceof Double)
+            {
+                s = numberChars.set(((Double) field).doubleValue());
+            }
+            else if (field instanceof Float)
+            {
+                s = numberChars.set(((Float) field).floatValue());
+            }
+            else
+            {
+                s = field.toString();
+            }
+            ensureCapacity(CSVEscaper.maxEscapedLength(s.length()) + fieldSeperator.length() + lineSeparator.length());
+            if (isCurrentLineEmpty)
+            {
+                if (rowStart > 0)
+                {
+                    charCount = put(lineSeparator, charCount);
+                }
+                isCurrentLineEmpty = false;
+            }
+            else
+            {
+                charCount = put(fieldSeperator, charCount);
+            }
+            charCount = CSVEscaper.escape(s, chars, charCount, fieldSeperator,
+                    lineSeparator);
+        }
+
+        public boolean endRow()
+        {
+            if (isCurrentLineEmpty)
+            {
+                return true;
+            }
+            isCurrentLineEmpty = true;
+            rowStart = charCount;
+            return (charCount < batchSize) ? true : flush();
+        }
+
+        /**
+         * Encodes the completed rows, reserves the region for them in the
+         * file and writes them. The current row is kept.
+         *
+         * @return true if the rows could be written
+         */
+        public boolean flush()
+        {
+            if (rowStart == 0)
+            {
+                return true;
+            }
+            boolean startsWithID = chars[0] == 'I' && rowStart > 1 && chars[1] == 'D';
+            bytes.clear();
+            bytes.position(prefixRoom);
+            encoder.reset();
+            CharBuffer in = CharBuffer.wrap(chars, 0, rowStart);
+            CoderResult result;
+            while ((result = encoder.encode(in, bytes, true)).isOverflow()
+                    || (result = encoder.flush(bytes)).isOverflow())
+            {
+                ByteBuffer larger = ByteBuffer.allocateDirect(bytes.capacity() * 2);
+                bytes.flip();
+                larger.put(bytes);
+                bytes = larger;
+            }
+            int length = bytes.position() - prefixRoom;
+            long pos;
+            int prefixLength;
+            do
+            {
+                pos = position.get();
+                prefixLength = (pos > 0) ? lineSeparatorBytes.length : (startsWithID ? 1 : 0);
+            }
+            while (!position.compareAndSet(pos, pos + prefixLength + length));
+            int start = prefixRoom - prefixLength;
+            if (pos > 0)
+            {
+                for (int i = 0; i < prefixLength; i++)
+                {
+                    bytes.put(start + i, lineSeparatorBytes[i]);
+                }
+            }
+            else if (startsWithID)
+            {
+                bytes.put(start, (byte) '\'');
+            }
+            bytes.limit(prefixRoom + length);
+            bytes.position(start);
+            boolean success = true;
+            try
+            {
+                long filePos = pos;
+                while (bytes.hasRemaining())
+                {
+                    filePos += target.write(bytes, filePos);
+                }
+            }
+            catch (IOException ex)
+            {
+                lastError = ex;
+                Log.error("Could not write into csv file", ex);
+                success = false;
+            }
+            // a started row begins with the line separator that follows the
+            // completed rows. The separator is written as the prefix of the
+            // next region, so the carried over row must start without it.
+            int carryStart = isCurrentLineEmpty ? rowStart
+                    : rowStart + lineSeparator.length();
+            int remaining = charCount - carryStart;
+            System.arraycopy(chars, carryStart, chars, 0, remaining);
+            charCount = remaining;
+            rowStart = 0;
+            return success;
+        }
+
+        private void ensureCapacity(int additional)
+        {
+            if (charCount + additional > chars.length)
+            {
+                char[] larger = new char[Math.max(chars.length * 2,
+                        charCount + additional)];
+                System.arraycopy(chars, 0, larger, 0, charCount);
+                chars = larger;
+            }
+        }
+
+        private int put(String s, int pos)
+        {
+            s.getChars(0, s.length(), chars, pos);
+            return pos + s.length();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes rows durably into a CSVWriter using group commit. Every row gets a
+ * future that is completed as soon as the row has been forced onto the
+ * storage device (fsync). A background thread collects the pending rows of
+ * all producers and commits them together with a single write and force.
+ * Thereby the cost of a force is shared by all rows of a commit.
+ *
+ * The commit of a row starts at the latest after the maximum commit latency
+ * or as soon as the maximum batch size has been reached. The writer must use
+ * the CHANNEL output mode and must not be compressed. If a commit fails with
+ * an unchecked exception (e.g. a field whose toString() throws), the writer
+ * fails: the rows of the commit and all rows after it are completed
+ * exceptionally.
+ * <pre>
+ * CSVWriter writer = new CSVWriter("audit.csv");
+ * writer.setOutputMode(CSVOutputMode.CHANNEL);
+ * DurableCSVWriter durable = new DurableCSVWriter(writer);
+ * durable.open();
+ * durable.println("user", "action").thenRun(() -&gt; acknowledge());
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class DurableCSVWriter
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_CAPACITY = 65536;
+    final public static int DEFAULT_MAX_BATCH_SIZE = 8192;
+    final public static long DEFAULT_MAX_COMMIT_LATENCY = 10;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final CSVWriter writer;
+    private final int capacity;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxCommitLatency = DEFAULT_MAX_COMMIT_LATENCY;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // pending rows are collected in one pair of lists while the other one is
+    // committed
+    private List<Object[]> pendingRows = new ArrayList<>();
+    private List<CompletableFuture<Void>> pendingFutures = new ArrayList<>();
+    private List<Object[]> committingRows = new ArrayList<>();
+    private List<CompletableFuture<Void>> committingFutures = new ArrayList<>();
+    private long firstPendingTime = 0;
+    private long commitCount = 0;
+    private long committedRows = 0;
+    private long errorCount = 0;
+    private boolean closed = true;
+    private IOException failure = null;
+    private Thread thread = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public DurableCSVWriter(CSVWriter writer)
+    {
+        this(writer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a durable writer.
+     *
+     * @param writer the writer to write the rows into (will be opened)
+     * @param capacity the number of pending rows after which producers have
+     * to wait
+     */
+    public DurableCSVWriter(CSVWriter writer, int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException(
+                    "The capacity must be at least 1.");
+        }
+        this.writer = writer;
+        this.capacity = capacity;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the number of pending rows after which a commit is
+     * started without waiting for the maximum commit latency (default: 8192)
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+    }
+
+    public long getMaxCommitLatency()
+    {
+        return maxCommitLatency;
+    }
+
+    /**
+     * @param maxCommitLatency the maximum time in milliseconds a row waits for
+     * more rows before it is committed (default: 10). Higher values lead to
+     * larger commits.
+     */
+    public void setMaxCommitLatency(long maxCommitLatency)
+    {
+        this.maxCommitLatency = Math.max(maxCommitLatency, 0);
+    }
+
+    /**
+     * @return the number of commits (write and force) since the writer was
+     * opened
+     */
+    public long getCommitCount()
+    {
+        lock.lock();
+        try
+        {
+            return commitCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows that have been committed successfully since
+     * the writer was opened
+     */
+    public long getCommittedRows()
+    {
+        lock.lock();
+        try
+        {
+            return committedRows;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of failed commits since the writer was opened
+     */
+    public long getErrorCount()
+    {
+        lock.lock();
+        try
+        {
+            return errorCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Opens the writer and starts the commit thread.
+     *
+     * @return true if the file could be opened
+     * @throws IllegalStateException if the writer is compressed or does not
+     * use the CHANNEL output mode
+     */
+    public boolean open()
+    {
+        close();
+        if (writer.isCompressed())
+        {
+            throw new IllegalStateException(
+                    "Compressed csv files cannot be written durably.");
+        }
+        if (writer.getOutputMode() != CSVOutputMode.CHANNEL)
+        {
+            throw new IllegalStateException(
+                    "Csv files can only be written durably in the CHANNEL output mode.");
+        }
+        if (!writer.open())
+        {
+            return false;
+        }
+        lock.lock();
+        try
+        {
+            commitCount = 0;
+            committedRows = 0;
+            errorCount = 0;
+            closed = false;
+            failure = null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        thread = new Thread(this::commitRows, "DurableCSVWriter");
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Commits the pending rows, stops the commit thread and closes the
+     * writer.
+     *
+     * @return true if all commits since the writer was opened were successful
+     */
+    public boolean close()
+    {
+        if (thread == null)
+        {
+            return true;
+        }
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Log.warning("Interrupted while waiting for the csv commit thread",
+                    ex);
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        boolean result = writer.close();
+        return result && getErrorCount() == 0;
+    }
+
+    public CompletableFuture<Void> println(Collection<? extends Object> fields)
+    {
+        return println(fields.toArray());
+    }
+
+    /**
+     * Hands a row over to the commit thread. Waits if the number of pending
+     * rows has reached the capacity. The fields must not be modified
+     * afterwards.
+     *
+     * @param fields the fields of the row
+     * @return a future that is completed when the row has been forced onto
+     * the storage device or completed exceptionally with the IOException if
+     * the row could not be written (or the writer has been closed or has
+     * failed)
+     */
+    public CompletableFuture<Void> println(Object... fields)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        lock.lock();
+        try
+        {
+            while (!closed && failure == null && pendingRows.size() >= capacity)
+            {
+                notFull.await();
+            }
+            if (failure != null)
+            {
+                future.completeExceptionally(failure);
+                return future;
+            }
+            if (closed)
+            {
+                future.completeExceptionally(new IOException(
+                        "The durable csv writer is closed."));
+                return future;
+            }
+            if (pendingRows.isEmpty())
+            {
+                firstPendingTime = System.nanoTime();
+            }
+            pendingRows.add(fields);
+            pendingFutures.add(future);
+            if (pendingRows.size() == 1 || pendingRows.size() == maxBatchSize)
+            {
+                notEmpty.signal();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(ex);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Main loop of the commit thread. Waits for pending rows and for the
+     * commit latency, swaps the pending and the committing lists and commits
+     * the rows without holding the lock. An unchecked exception of a commit
+     * stops the thread (see fail()).
+     */
+    private void commitRows()
+    {
+        while (true)
+        {
+            lock.lock();
+            try
+            {
+                while (pendingRows.isEmpty() && !closed)
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pendingRows.isEmpty())
+                {
+                    return;
+                }
+                long deadline = firstPendingTime
+                        + TimeUnit.MILLISECONDS.toNanos(maxCommitLatency);
+                long remaining;
+                while (!closed && pendingRows.size() < maxBatchSize
+                        && (remaining = deadline - System.nanoTime()) > 0)
+                {
+                    try
+                    {
+                        notEmpty.awaitNanos(remaining);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // commit immediately
+                        break;
+                    }
+                }
+                List<Object[]> rows = pendingRows;
+                pendingRows = committingRows;
+                committingRows = rows;
+                List<CompletableFuture<Void>> futures = pendingFutures;
+                pendingFutures = committingFutures;
+                committingFutures = futures;
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            try
+            {
+                commit(committingRows, committingFutures);
+            }
+            catch (RuntimeException | Error ex)
+            {
+                fail(ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Completes the rows of the failed commit and all pending rows
+     * exceptionally. Rows that are handed over later fail immediately.
+     */
+    private void fail(Throwable cause)
+    {
+        IOException ex = new IOException("Could not commit csv rows", cause);
+        Log.error("Could not commit csv rows", ex);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(committingFutures);
+        lock.lock();
+        try
+        {
+            commitCount++;
+            errorCount++;
+            failure = ex;
+            futures.addAll(pendingFutures);
+            pendingRows.clear();
+            pendingFutures.clear();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (CompletableFuture<Void> future : futures)
+        {
+            future.completeExceptionally(ex);
+        }
+        committingRows.clear();
+        committingFutures.clear();
+    }
+
+    /**
+     * Writes and forces a batch of rows and completes their futures.
+     */
+    private void commit(List<Object[]> rows,
+            List<CompletableFuture<Void>> futures)
+    {
+        boolean result = true;
+        for (Object[] row : rows)
+        {
+            for (Object field : row)
+            {
+                result &= writer.print(field);
+            }
+            result &= writer.newLine();
+        }
+        result &= writer.sync();
+        lock.lock();
+        try
+        {
+            commitCount++;
+            if (result)
+            {
+                committedRows += rows.size();
+            }
+            else
+            {
+                errorCount++;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        IOException error = result ? null : (writer.getLastError() != null
+                ? writer.getLastError() : new IOException("Could not commit csv rows"));
+        for (CompletableFuture<Void> future : futures)
+        {
+            if (result)
+            {
+                future.complete(null);
+            }
+            else
+            {
+                future.completeExceptionally(error);
+            }
+        }
+        rows.clear();
+        futures.clear();
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads arbitrary rows of a large csv file using its row index (see
+ * CSVRowIndex). A jump to a row seeks to the offset of the preceding indexed
+ * row and skips less than one index interval, instead of reading the file
+ * from the start. If the index file is missing or does not belong to the
+ * current version of the file, it is rebuilt in one pass by open() and saved
+ * next to the file. After seek() the following rows are read sequentially
+ * with next().
+ * <pre>
+ * IndexedCSVReader reader = new IndexedCSVReader("large.csv");
+ * reader.open();
+ * List&lt;String[]&gt; page = reader.readRows(1000000, 50);
+ * reader.close();
+ * </pre>
+ *
+ * @author Benjamin Petry
+ */
+public class IndexedCSVReader
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private Charset charset = StandardCharsets.UTF_8;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private int indexInterval = CSVRowIndex.DEFAULT_INTERVAL;
+    private CSVRowIndex index = null;
+    private CSVReader reader = null;
+    private long rowNumber = -1;
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public IndexedCSVReader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public IndexedCSVReader(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * @param charset the charset of the file (default: UTF-8). It must be
+     * ASCII compatible (e.g. UTF-8 or ISO-8859-1).
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getIndexInterval()
+    {
+        return indexInterval;
+    }
+
+    /**
+     * @param indexInterval the number of rows between two indexed rows if the
+     * index has to be rebuilt (default: 1024)
+     */
+    public void setIndexInterval(int indexInterval)
+    {
+        this.indexInterval = Math.max(indexInterval, 1);
+    }
+
+    /**
+     * @return the index of the file or null if the file is not opened
+     */
+    public CSVRowIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * @return the number of rows of the file (including a header)
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public long getRowCount()
+    {
+        checkOpened();
+        return index.getRowCount();
+    }
+
+    /**
+     * @return the number of the current row (starting with 0)
+     */
+    public long getRowNumber()
+    {
+        return rowNumber;
+    }
+
+    /**
+     * @return the number of fields of the current row
+     */
+    public int getFieldCount()
+    {
+        return (reader != null) ? reader.getFieldCount() : 0;
+    }
+
+    /**
+     * @return the exception of the last failed open, seek or read operation
+     * or null if no operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Loads the index of the file or rebuilds it if it is missing or stale
+     * and positions the reader before the first row.
+     *
+     * @return true if the file could be opened
+     */
+    public boolean open()
+    {
+        close();
+        File indexFile = CSVRowIndex.getIndexFile(file);
+        try
+        {
+            if (!file.isFile())
+            {
+                throw new IOException("The csv file " + file + " does not exist.");
+            }
+            if (indexFile.exists())
+            {
+                try
+                {
+                    index = CSVRowIndex.load(indexFile);
+                }
+                catch (IOException ex)
+                {
+                    Log.warning("Could not load csv index " + indexFile, ex);
+                }
+            }
+            if (index == null || !index.isValidFor(file))
+            {
+                index = CSVRowIndex.build(file, charset, indexInterval);
+                index.save(indexFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open csv file for reading", ex);
+            index = null;
+            return false;
+        }
+        return seek(0);
+    }
+
+    public boolean close()
+    {
+        boolean result = closeReader();
+        index = null;
+        rowNumber = -1;
+        return result;
+    }
+
+    /**
+     * Positions the reader before a row, so that the next call of next()
+     * reads the row.
+     *
+     * @param row the number of the row (starting with 0)
+     * @return true if the row exists and the reader could be positioned
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean seek(long row)
+    {
+        checkOpened();
+        closeReader();
+        if (row < 0 || row > index.getRowCount())
+        {
+            return false;
+        }
+        long offset = index.getOffset(row);
+        try
+        {
+            FileInputStream stream = new FileInputStream(file);
+            try
+            {
+                stream.getChannel().position(offset);
+            }
+            catch (IOException ex)
+            {
+                stream.close();
+                throw ex;
+            }
+            reader = new CSVReader(stream);
+            reader.setCharset(charset);
+            reader.setFieldSeperator(fieldSeperator);
+            reader.setStartOfFile(offset == 0);
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not seek in csv file", ex);
+            return false;
+        }
+        if (!reader.open())
+        {
+            lastError = reader.getLastError();
+            reader = null;
+            return false;
+        }
+        rowNumber = index.getIndexedRow(row) - 1;
+        while (rowNumber < row - 1)
+        {
+            if (!next())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return false if there are no more rows or the file could not be read
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean next()
+    {
+        checkOpened();
+        if (reader == null || !reader.next())
+        {
+            if (reader != null && reader.getLastError() != null)
+            {
+                lastError = reader.getLastError();
+            }
+            return false;
+        }
+        rowNumber++;
+        return true;
+    }
+
+    /**
+     * @return the fields of the current row
+     */
+    public String[] getRow()
+    {
+        return reader.getRow();
+    }
+
+    /**
+     * Returns a view of a field of the current row without copying it. The
+     * view is only valid until next() is called.
+     *
+     * @param col the index of the field
+     * @return the field
+     */
+    public CharSequence getField(int col)
+    {
+        return reader.getField(col);
+    }
+
+    public String getString(int col)
+    {
+        return reader.getString(col);
+    }
+
+    /**
+     * Reads a single row.
+     *
+     * @param row the number of the row (starting with 0)
+     * @return the fields of the row or null if the row does not exist
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public String[] readRow(long row)
+    {
+        List<String[]> rows = readRows(row, 1);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Reads a range of rows. The range is cut at the end of the file.
+     *
+     * @param from the number of the first row (starting with 0)
+     * @param count the maximum number of rows
+     * @return the fields of the rows
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public List<String[]> readRows(long from, int count)
+    {
+        List<String[]> rows = new ArrayList<>(Math.max(Math.min(count, 1024), 0));
+        // rows following the current row are read without seeking
+        if ((rowNumber + 1 == from && reader != null) || seek(from))
+        {
+            while (rows.size() < count && next())
+            {
+                rows.add(getRow());
+            }
+        }
+        return rows;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private void checkOpened()
+    {
+        if (index == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+    }
+
+    private boolean closeReader()
+    {
+        boolean result = true;
+        if (reader != null)
+        {
+            result = reader.close();
+            if (!result)
+            {
+                lastError = reader.getLastError();
+            }
+            reader = null;
+        }
+        return result;
+    }
+}
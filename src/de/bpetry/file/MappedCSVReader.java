@@ -0,0 +1,774 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads csv files written by the CSVWriter from a memory mapping of the file.
+ * In contrast to the CSVReader, the fields are not decoded while reading a
+ * row. Only the positions of the fields are stored, so columns that are not
+ * accessed just cost the scan for the separators. Fields are accessed as lazy
+ * views into the mapping (getField(), getBytes()), converted into Strings on
+ * demand (getString()) or parsed as numbers directly from the bytes
+ * (getInt(), getLong(), getDouble()).
+ *
+ * The file is mapped in windows of a fixed size, so files larger than 2 GiB
+ * can be read as well. A row that crosses the end of a window is read again
+ * from a new window that starts with this row. The file has to be encoded
+ * with a charset in which the bytes of quotes, separators and line breaks
+ * cannot be part of other characters (UTF-8, ISO-8859-1 or US-ASCII).
+ *
+ * @author Benjamin Petry
+ */
+public class MappedCSVReader
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    final private static int FLAG_ESCAPED_QUOTES = 1;
+    final private static int FLAG_NON_ASCII = 2;
+    final private static int ROW_READ = 1;
+    final private static int END_OF_FILE = 0;
+    final private static int END_OF_WINDOW = -1;
+    final private static double[] POWERS_OF_TEN = new double[]
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+        1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private Charset charset = StandardCharsets.UTF_8;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private IOException lastError = null;
+
+    // mapping
+    private FileChannel channel = null;
+    private long fileSize = 0;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private int windowLimit = 0;
+    private int position = 0;
+    private byte[] separator;
+
+    // current row
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int[] fieldFlags = new int[16];
+    private int fieldCount = 0;
+    private long rowNumber = -1;
+    private FieldView[] views = new FieldView[0];
+    private byte[] decodeBuffer = new byte[64];
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public MappedCSVReader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public MappedCSVReader(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * @param charset the charset of the file: UTF-8 (default), ISO-8859-1 or
+     * US-ASCII. Takes effect on the next call of open().
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getWindowSize()
+    {
+        return windowSize;
+    }
+
+    /**
+     * @param windowSize the number of bytes that are mapped at once (default:
+     * 64 MiB). The window is enlarged automatically for rows that do not fit
+     * into it.
+     */
+    public void setWindowSize(int windowSize)
+    {
+        this.windowSize = Math.max(windowSize, 16);
+    }
+
+    /**
+     * @return the exception of the last failed open, read or close operation
+     * or null if no operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * @return the number of the current row starting with 0 (-1 before the
+     * first call of next())
+     */
+    public long getRowNumber()
+    {
+        return rowNumber;
+    }
+
+    /**
+     * @return the number of fields of the current row
+     */
+    public int getFieldCount()
+    {
+        return fieldCount;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Opens the file for reading.
+     *
+     * @return true if the file could be opened
+     * @throws IllegalArgumentException if the charset is not supported
+     */
+    public boolean open()
+    {
+        if (!charset.equals(StandardCharsets.UTF_8)
+                && !charset.equals(StandardCharsets.ISO_8859_1)
+                && !charset.equals(StandardCharsets.US_ASCII))
+        {
+            throw new IllegalArgumentException("The charset " + charset
+                    + " is not supported by memory mapped csv files.");
+        }
+        close();
+        try
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = channel.size();
+            map(0, windowSize);
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not open csv file for reading", ex);
+            close();
+            return false;
+        }
+        separator = fieldSeperator.getBytes(charset);
+        fieldCount = 0;
+        rowNumber = -1;
+        return true;
+    }
+
+    /**
+     * Closes the file. The mapping is released by the garbage collector.
+     *
+     * @return true if the file could be closed
+     */
+    public boolean close()
+    {
+        window = null;
+        fieldCount = 0;
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                lastError = ex;
+                Log.error("Could not close csv file", ex);
+                return false;
+            }
+            finally
+            {
+                channel = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next row. Only the positions of the fields are determined.
+     *
+     * @return false if there are no more rows or the file could not be read
+     * @throws IllegalStateException in case the csv file is not opened yet.
+     */
+    public boolean next()
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("The csv file is not opened yet.");
+        }
+        try
+        {
+            int result;
+            while ((result = scanRow()) == END_OF_WINDOW)
+            {
+                int size = (position == 0) ? (int) Math.min(Integer.MAX_VALUE,
+                        2L * Math.max(windowLimit, windowSize)) : windowSize;
+                map(windowStart + position, size);
+            }
+            if (result == END_OF_FILE)
+            {
+                fieldCount = 0;
+                return false;
+            }
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not read from csv file", ex);
+            fieldCount = 0;
+            return false;
+        }
+        rowNumber++;
+        return true;
+    }
+
+    /**
+     * Returns a view of a field of the current row. Fields that consist of
+     * ASCII characters only are read directly from the mapping, others are
+     * decoded on first access. The view is reused for the following rows and
+     * is therefore only valid until next() is called.
+     *
+     * @param col the index of the field
+     * @return the field
+     */
+    public CharSequence getField(int col)
+    {
+        checkField(col);
+        if (views.length <= col)
+        {
+            int length = views.length;
+            views = Arrays.copyOf(views, Math.max(col + 1, length * 2));
+            for (int n = length; n < views.length; n++)
+            {
+                views[n] = new FieldView(n);
+            }
+        }
+        views[col].reset();
+        return views[col];
+    }
+
+    /**
+     * Returns the raw bytes of a field as view into the mapping. Quotes of
+     * quoted fields are not part of the view, doubled quotes within them are
+     * not unescaped.
+     *
+     * @param col the index of the field
+     * @return a read-only buffer from position 0 to the end of the field
+     */
+    public ByteBuffer getBytes(int col)
+    {
+        checkField(col);
+        ByteBuffer view = window.duplicate();
+        view.position(fieldStarts[col]);
+        view.limit(fieldEnds[col]);
+        return view.slice();
+    }
+
+    public String getString(int col)
+    {
+        checkField(col);
+        int start = fieldStarts[col];
+        int length = fieldEnds[col] - start;
+        if (decodeBuffer.length < length)
+        {
+            decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+        }
+        if ((fieldFlags[col] & FLAG_ESCAPED_QUOTES) == 0)
+        {
+            for (int n = 0; n < length; n++)
+            {
+                decodeBuffer[n] = window.get(start + n);
+            }
+        }
+        else
+        {
+            int n = 0;
+            for (int i = start; i < start + length; i++)
+            {
+                byte b = window.get(i);
+                decodeBuffer[n++] = b;
+                if (b == '"')
+                {
+                    i++;
+                }
+            }
+            length = n;
+        }
+        return new String(decodeBuffer, 0, length, charset);
+    }
+
+    public boolean isEmpty(int col)
+    {
+        checkField(col);
+        return fieldStarts[col] == fieldEnds[col];
+    }
+
+    /**
+     * @param col the index of the field
+     * @return the field as int
+     * @throws NumberFormatException if the field is not an integer
+     */
+    public int getInt(int col)
+    {
+        long value = getLong(col);
+        if (value != (int) value)
+        {
+            throw new NumberFormatException("Value out of int range: "
+                    + getString(col));
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the field directly from the mapped bytes.
+     *
+     * @param col the index of the field
+     * @return the field as long
+     * @throws NumberFormatException if the field is not an integer
+     */
+    public long getLong(int col)
+    {
+        checkField(col);
+        int pos = fieldStarts[col];
+        int end = fieldEnds[col];
+        boolean negative = false;
+        if (pos < end && (window.get(pos) == '-' || window.get(pos) == '+'))
+        {
+            negative = window.get(pos) == '-';
+            pos++;
+        }
+        if (pos == end)
+        {
+            throw invalidNumber(col);
+        }
+        long value = 0;
+        for (; pos < end; pos++)
+        {
+            int digit = window.get(pos) - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+            {
+                throw invalidNumber(col);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative)
+        {
+            if (value == Long.MIN_VALUE)
+            {
+                throw invalidNumber(col);
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Parses the field directly from the mapped bytes. Numbers with at most
+     * 15 significant digits and a small exponent are converted exactly
+     * without creating a String, others are parsed by Double.parseDouble().
+     *
+     * @param col the index of the field
+     * @return the field as double
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDouble(int col)
+    {
+        checkField(col);
+        int pos = fieldStarts[col];
+        int end = fieldEnds[col];
+        boolean negative = false;
+        if (pos < end && (window.get(pos) == '-' || window.get(pos) == '+'))
+        {
+            negative = window.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean isFraction = false;
+        for (; pos < end; pos++)
+        {
+            byte b = window.get(pos);
+            if (b >= '0' && b <= '9')
+            {
+                hasDigits = true;
+                if (mantissa != 0 || b != '0')
+                {
+                    if (++digits > 15)
+                    {
+                        return Double.parseDouble(getString(col));
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+                if (isFraction)
+                {
+                    exponent--;
+                }
+            }
+            else if (b == '.' && !isFraction)
+            {
+                isFraction = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (!hasDigits)
+        {
+            return Double.parseDouble(getString(col));
+        }
+        if (pos < end)
+        {
+            byte b = window.get(pos);
+            if ((b != 'e' && b != 'E') || pos + 1 == end)
+            {
+                return Double.parseDouble(getString(col));
+            }
+            pos++;
+            boolean negativeExponent = false;
+            if (window.get(pos) == '-' || window.get(pos) == '+')
+            {
+                negativeExponent = window.get(pos) == '-';
+                pos++;
+            }
+            int value = 0;
+            if (pos == end)
+            {
+                throw invalidNumber(col);
+            }
+            for (; pos < end; pos++)
+            {
+                int digit = window.get(pos) - '0';
+                if (digit < 0 || digit > 9)
+                {
+                    throw invalidNumber(col);
+                }
+                if (value > 1000)
+                {
+                    return Double.parseDouble(getString(col));
+                }
+                value = value * 10 + digit;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        double result;
+        if (mantissa == 0)
+        {
+            result = 0;
+        }
+        else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+        {
+            result = mantissa * POWERS_OF_TEN[exponent];
+        }
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+        {
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        }
+        else
+        {
+            return Double.parseDouble(getString(col));
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * @param col the index of the field
+     * @return true if the field is "true" (ignoring case)
+     */
+    public boolean getBoolean(int col)
+    {
+        checkField(col);
+        int start = fieldStarts[col];
+        if (fieldEnds[col] - start != 4)
+        {
+            return false;
+        }
+        return (window.get(start) | 0x20) == 't'
+                && (window.get(start + 1) | 0x20) == 'r'
+                && (window.get(start + 2) | 0x20) == 'u'
+                && (window.get(start + 3) | 0x20) == 'e';
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private void map(long start, int size) throws IOException
+    {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(size, fileSize - start));
+        windowStart = start;
+        windowLimit = window.limit();
+        position = 0;
+    }
+
+    private boolean isLastWindow()
+    {
+        return windowStart + windowLimit >= fileSize;
+    }
+
+    /**
+     * Determines the positions of the fields of the next row.
+     *
+     * @return ROW_READ, END_OF_FILE or END_OF_WINDOW if the row is not
+     * completely part of the current window
+     */
+    private int scanRow()
+    {
+        if (position >= windowLimit)
+        {
+            return isLastWindow() ? END_OF_FILE : END_OF_WINDOW;
+        }
+        fieldCount = 0;
+        int pos = position;
+        byte firstSeparator = separator.length == 0 ? (byte) '\n' : separator[0];
+        while (true)
+        {
+            int start = pos;
+            int end = pos;
+            int flags = 0;
+            boolean quoted = window.get(pos) == '"';
+            if (quoted)
+            {
+                start = ++pos;
+                while (pos < windowLimit)
+                {
+                    byte b = window.get(pos);
+                    if (b == '"')
+                    {
+                        if (pos + 1 < windowLimit && window.get(pos + 1) == '"')
+                        {
+                            flags |= FLAG_ESCAPED_QUOTES;
+                            pos += 2;
+                            continue;
+                        }
+                        if (pos + 1 == windowLimit && !isLastWindow())
+                        {
+                            return END_OF_WINDOW;
+                        }
+                        break;
+                    }
+                    if (b < 0)
+                    {
+                        flags |= FLAG_NON_ASCII;
+                    }
+                    pos++;
+                }
+                end = pos;
+            }
+            while (pos < windowLimit)
+            {
+                byte b = window.get(pos);
+                if (b == '\n' || (b == firstSeparator && isSeparatorAt(pos)))
+                {
+                    break;
+                }
+                if (b < 0)
+                {
+                    flags |= FLAG_NON_ASCII;
+                }
+                pos++;
+            }
+            if (pos >= windowLimit && !isLastWindow())
+            {
+                return END_OF_WINDOW;
+            }
+            if (!quoted)
+            {
+                end = pos;
+                if (end > start && pos < windowLimit && window.get(pos) == '\n'
+                        && window.get(end - 1) == '\r')
+                {
+                    end--;
+                }
+                if (rowNumber == -1 && fieldCount == 0 && windowStart == 0
+                        && end - start >= 3 && window.get(start) == '\''
+                        && window.get(start + 1) == 'I'
+                        && window.get(start + 2) == 'D')
+                {
+                    start++;
+                }
+            }
+            else
+            {
+                end = Math.min(end, pos);
+            }
+            addField(start, end, flags);
+            if (pos >= windowLimit)
+            {
+                position = pos;
+                return ROW_READ;
+            }
+            if (window.get(pos) == '\n')
+            {
+                position = pos + 1;
+                return ROW_READ;
+            }
+            pos += separator.length;
+            if (pos >= windowLimit)
+            {
+                if (!isLastWindow())
+                {
+                    return END_OF_WINDOW;
+                }
+                addField(pos, pos, 0);
+                position = pos;
+                return ROW_READ;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the separator starts at the given position. A separator
+     * that is cut off by the end of the window does not match.
+     */
+    private boolean isSeparatorAt(int pos)
+    {
+        if (pos + separator.length > windowLimit)
+        {
+            return false;
+        }
+        for (int n = 1; n < separator.length; n++)
+        {
+            if (window.get(pos + n) != separator[n])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addField(int start, int end, int flags)
+    {
+        if (fieldCount == fieldStarts.length)
+        {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            fieldFlags = Arrays.copyOf(fieldFlags, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldFlags[fieldCount] = flags;
+        fieldCount++;
+    }
+
+    private void checkField(int col)
+    {
+        if (col < 0 || col >= fieldCount)
+        {
+            throw new IndexOutOfBoundsException("Field " + col
+                    + " does not exist (fields: " + fieldCount + ")");
+        }
+    }
+
+    private NumberFormatException invalidNumber(int col)
+    {
+        return new NumberFormatException("For input string: \""
+                + getString(col) + "\"");
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * View of a field of the current row. Is reused for all rows.
+     */
+    private class FieldView implements CharSequence
+    {
+
+        private final int col;
+        private String decoded = null;
+
+        public FieldView(int col)
+        {
+            this.col = col;
+        }
+
+        public void reset()
+        {
+            decoded = (fieldFlags[col] == 0) ? null : getString(col);
+        }
+
+        @Override
+        public int length()
+        {
+            return (decoded != null) ? decoded.length()
+                    : fieldEnds[col] - fieldStarts[col];
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (decoded != null)
+            {
+                return decoded.charAt(index);
+            }
+            if (index < 0 || index >= length())
+            {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return (char) window.get(fieldStarts[col] + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return (decoded != null) ? decoded : getString(col);
+        }
+    }
+}
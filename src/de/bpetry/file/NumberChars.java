@@ -0,0 +1,97 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.NumberFormatter;
+
+/**
+ * Reusable char sequence that holds a formatted number (see NumberFormatter).
+ * Allows the writers to escape numbers like any other field without creating
+ * Strings.
+ *
+ * @author Benjamin Petry
+ */
+final class NumberChars implements CharSequence
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private char[] chars = new char[NumberFormatter.MAX_LENGTH];
+    private int length = 0;
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    public NumberChars set(long value)
+    {
+        length = NumberFormatter.format(value, chars, 0);
+        return this;
+    }
+
+    public NumberChars set(double value)
+    {
+        length = NumberFormatter.format(value, chars, 0);
+        return this;
+    }
+
+    public NumberChars set(float value)
+    {
+        length = NumberFormatter.format(value, chars, 0);
+        return this;
+    }
+
+    /**
+     * @param value the value
+     * @param decimals the number of digits after the decimal point
+     * @return this sequence
+     */
+    public NumberChars set(double value, int decimals)
+    {
+        int maxLength = NumberFormatter.maxFixedLength(decimals);
+        if (chars.length < maxLength)
+        {
+            chars = new char[maxLength];
+        }
+        length = NumberFormatter.format(value, decimals, chars, 0);
+        return this;
+    }
+
+    public NumberChars set(char value)
+    {
+        chars[0] = value;
+        length = 1;
+        return this;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(chars, 0, length);
+    }
+}
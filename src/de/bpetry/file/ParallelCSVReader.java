@@ -0,0 +1,489 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import de.bpetry.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Parses a csv file written by the CSVWriter on several threads. The file is
+ * cut into byte ranges (chunks) which are parsed by a fork-join pool with one
+ * CSVReader per chunk.
+ *
+ * The chunks have to start at row boundaries, but line breaks may also occur
+ * within quoted fields. Since the CSVWriter doubles quotes within fields, a
+ * position is within a quoted field if and only if the number of quotes
+ * before it is odd. Therefore, all chunks are scanned in parallel first,
+ * counting their quotes and remembering their first line break for both
+ * possible parities. A prefix sum over the quote counts tells the parity at
+ * the beginning of each chunk and thereby the first real row boundary.
+ *
+ * This only works for charsets in which quotes and line breaks cannot be part
+ * of other characters (UTF-8, ISO-8859-1 and US-ASCII). Files with other
+ * charsets are parsed in a single chunk.
+ *
+ * @author Benjamin Petry
+ */
+public class ParallelCSVReader
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    final private static int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File file;
+    private Charset charset = StandardCharsets.UTF_8;
+    private String fieldSeperator = CSVWriter.SEPARATOR_COMMA;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean ordered = true;
+    private final AtomicLong rowsRead = new AtomicLong();
+    private IOException lastError = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ParallelCSVReader(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public ParallelCSVReader(File f)
+    {
+        file = f;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getFieldSeperator()
+    {
+        return fieldSeperator;
+    }
+
+    public void setFieldSeperator(String seperator)
+    {
+        this.fieldSeperator = seperator;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize the number of bytes per chunk (default: 8 MiB). Rows
+     * are never split, so the actual chunks differ slightly.
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = Math.max(chunkSize, 1);
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the number of threads parsing chunks (default:
+     * number of available processors)
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    public boolean isOrdered()
+    {
+        return ordered;
+    }
+
+    /**
+     * @param ordered true, if the rows are passed to the action in the order
+     * of the file by the calling thread (default). If false, the rows are
+     * passed as soon as they are parsed by the threads of the pool, so the
+     * action has to be thread-safe.
+     */
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return the number of rows read by the last call of forEach()
+     */
+    public long getRowsRead()
+    {
+        return rowsRead.get();
+    }
+
+    /**
+     * @return the exception of the last failed read operation or null if no
+     * operation has failed yet
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Parses the file and passes every row to the action.
+     *
+     * @param action receives the fields of each row
+     * @return true if the whole file could be read
+     */
+    public boolean forEach(Consumer<? super String[]> action)
+    {
+        rowsRead.set(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ))
+        {
+            long[] boundaries = findRowBoundaries(channel, pool);
+            if (ordered)
+            {
+                return parseOrdered(channel, pool, boundaries, action);
+            }
+            return parseUnordered(channel, pool, boundaries, action);
+        }
+        catch (IOException ex)
+        {
+            lastError = ex;
+            Log.error("Could not read csv file", ex);
+            return false;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Cuts the file into chunks and moves the start of every chunk to the
+     * next row boundary.
+     *
+     * @return the start positions of the chunks followed by the file size
+     */
+    private long[] findRowBoundaries(FileChannel channel, ForkJoinPool pool)
+            throws IOException
+    {
+        long size = channel.size();
+        if (size <= chunkSize || !isSplittable(charset))
+        {
+            return new long[]
+            {
+                0, size
+            };
+        }
+        int count = (int) ((size + chunkSize - 1) / chunkSize);
+        List<Future<ChunkScan>> scans = new ArrayList<>(count);
+        for (int n = 0; n < count; n++)
+        {
+            final long start = (long) n * chunkSize;
+            final long end = Math.min(start + chunkSize, size);
+            scans.add(pool.submit(() -> scan(channel, start, end)));
+        }
+        long[] boundaries = new long[count + 1];
+        boundaries[count] = size;
+        long quotes = 0;
+        for (int n = 0; n < count; n++)
+        {
+            ChunkScan scan = get(scans.get(n));
+            boundaries[n] = (n == 0) ? 0
+                    : ((quotes & 1) == 0 ? scan.firstEvenLineBreak : scan.firstOddLineBreak);
+            quotes += scan.quotes;
+        }
+        // chunks without a row boundary are merged with the following chunk
+        for (int n = count - 1; n > 0; n--)
+        {
+            if (boundaries[n] < 0)
+            {
+                boundaries[n] = boundaries[n + 1];
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Counts the quotes of a byte range and finds the first line break after
+     * an even and an odd number of quotes (relative to the range).
+     */
+    private ChunkScan scan(FileChannel channel, long start, long end)
+            throws IOException
+    {
+        ChunkScan result = new ChunkScan();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long quotes = 0;
+        long position = start;
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(bytes.length, end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0)
+            {
+                break;
+            }
+            for (int i = 0; i < read; i++)
+            {
+                byte b = bytes[i];
+                if (b == '"')
+                {
+                    quotes++;
+                }
+                else if (b == '\n')
+                {
+                    if ((quotes & 1) == 0)
+                    {
+                        if (result.firstEvenLineBreak < 0)
+                        {
+                            result.firstEvenLineBreak = position + i + 1;
+                        }
+                    }
+                    else if (result.firstOddLineBreak < 0)
+                    {
+                        result.firstOddLineBreak = position + i + 1;
+                    }
+                }
+            }
+            position += read;
+        }
+        result.quotes = quotes;
+        return result;
+    }
+
+    private boolean parseOrdered(FileChannel channel, ForkJoinPool pool,
+            long[] boundaries, Consumer<? super String[]> action)
+            throws IOException
+    {
+        int maxChunksInFlight = parallelism * 2;
+        Queue<Future<List<String[]>>> chunksInFlight = new ArrayDeque<>();
+        int next = 0;
+        while (next < boundaries.length - 1 || !chunksInFlight.isEmpty())
+        {
+            while (next < boundaries.length - 1 && chunksInFlight.size() < maxChunksInFlight)
+            {
+                final int chunk = next++;
+                if (boundaries[chunk] == boundaries[chunk + 1])
+                {
+                    continue;
+                }
+                chunksInFlight.add(pool.submit(() ->
+                {
+                    List<String[]> rows = new ArrayList<>();
+                    parse(channel, boundaries, chunk, rows::add);
+                    return rows;
+                }));
+            }
+            if (!chunksInFlight.isEmpty())
+            {
+                List<String[]> rows = get(chunksInFlight.poll());
+                for (String[] row : rows)
+                {
+                    action.accept(row);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean parseUnordered(FileChannel channel, ForkJoinPool pool,
+            long[] boundaries, Consumer<? super String[]> action)
+            throws IOException
+    {
+        List<Future<Void>> chunks = new ArrayList<>();
+        for (int n = 0; n < boundaries.length - 1; n++)
+        {
+            final int chunk = n;
+            if (boundaries[chunk] < boundaries[chunk + 1])
+            {
+                chunks.add(pool.submit(() ->
+                {
+                    parse(channel, boundaries, chunk, action);
+                    return null;
+                }));
+            }
+        }
+        for (Future<Void> chunk : chunks)
+        {
+            get(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Parses a chunk with a CSVReader. Is executed by the pool.
+     *
+     * @throws IOException if the chunk could not be read
+     */
+    private void parse(FileChannel channel, long[] boundaries, int chunk,
+            Consumer<? super String[]> action) throws IOException
+    {
+        CSVReader reader = new CSVReader(new RangeInputStream(channel,
+                boundaries[chunk], boundaries[chunk + 1]));
+        reader.setCharset(charset);
+        reader.setFieldSeperator(fieldSeperator);
+        reader.setStartOfFile(chunk == 0);
+        if (!reader.open())
+        {
+            throw reader.getLastError();
+        }
+        long rows = 0;
+        String[] row;
+        while ((row = reader.readRow()) != null)
+        {
+            action.accept(row);
+            rows++;
+        }
+        rowsRead.addAndGet(rows);
+        if (reader.getLastError() != null)
+        {
+            throw reader.getLastError();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static boolean isSplittable(Charset charset)
+    {
+        return charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits for the result of a task. Exceptions thrown by the task are
+     * rethrown.
+     */
+    private static <T> T get(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing csv file", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Could not parse csv chunk", cause);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Result of the scan of a chunk. The positions are absolute positions
+     * after the line break (-1 if there is none).
+     */
+    private static class ChunkScan
+    {
+
+        private long quotes = 0;
+        private long firstEvenLineBreak = -1;
+        private long firstOddLineBreak = -1;
+    }
+
+    /**
+     * Reads a byte range of a file channel with positional reads, so several
+     * streams can read the same channel concurrently.
+     */
+    private static class RangeInputStream extends InputStream
+    {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        public RangeInputStream(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (position >= end)
+            {
+                return -1;
+            }
+            int length = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, length), position);
+            if (read > 0)
+            {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
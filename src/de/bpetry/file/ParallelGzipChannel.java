@@ -0,0 +1,322 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Channel that gzip-compresses everything written into it on a pool of worker
+ * threads. The data is cut into blocks of a fixed size, every block is
+ * compressed independently into a gzip member and the members are written in
+ * order into the target channel. A concatenation of gzip members is a valid
+ * gzip file (RFC 1952) that any standard reader can decompress. The number of
+ * blocks in flight is limited, so the writing thread waits if the workers
+ * cannot keep up.
+ *
+ * @author Benjamin Petry
+ */
+public class ParallelGzipChannel implements WritableByteChannel
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    final private static byte[] GZIP_HEADER = new byte[]
+    {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+    final private static int GZIP_TRAILER_LENGTH = 8;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final WritableByteChannel target;
+    private final int level;
+    private final int blockSize;
+    private final int maxBlocksInFlight;
+    private final ExecutorService workers;
+    private final Queue<Future<Block>> blocksInFlight = new ArrayDeque<>();
+    private final Queue<Block> freeBlocks = new ArrayDeque<>();
+    private final Queue<Deflater> freeDeflaters = new ConcurrentLinkedQueue<>();
+    private Block current = null;
+    private boolean isEmpty = true;
+    private boolean open = true;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ParallelGzipChannel(WritableByteChannel target)
+    {
+        this(target, Deflater.DEFAULT_COMPRESSION,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a compressing channel.
+     *
+     * @param target the channel to write the gzip stream into
+     * @param level the compression level (0-9 or Deflater.DEFAULT_COMPRESSION)
+     * @param workerCount the number of threads that compress blocks
+     * @param blockSize the number of uncompressed bytes per block
+     */
+    public ParallelGzipChannel(WritableByteChannel target, int level,
+            int workerCount, int blockSize)
+    {
+        if (workerCount < 1 || blockSize < 1)
+        {
+            throw new IllegalArgumentException(
+                    "The worker count and the block size must be at least 1.");
+        }
+        this.target = target;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxBlocksInFlight = workerCount * 2;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, (r) ->
+        {
+            Thread t = new Thread(r, "ParallelGzipChannel-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (!open)
+        {
+            throw new ClosedChannelException();
+        }
+        int written = src.remaining();
+        while (src.hasRemaining())
+        {
+            if (current == null)
+            {
+                current = nextFreeBlock();
+            }
+            int n = Math.min(src.remaining(), blockSize - current.inputLength);
+            src.get(current.input, current.inputLength, n);
+            current.inputLength += n;
+            if (current.inputLength == blockSize)
+            {
+                submitCurrent();
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Compresses the remaining data, writes all blocks, stops the workers and
+     * closes the target channel.
+     *
+     * @throws IOException if a block could not be compressed or written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!open)
+        {
+            return;
+        }
+        open = false;
+        try
+        {
+            if (current != null || isEmpty)
+            {
+                if (current == null)
+                {
+                    current = nextFreeBlock();
+                }
+                submitCurrent();
+            }
+            while (!blocksInFlight.isEmpty())
+            {
+                writeOldestBlock();
+            }
+        }
+        finally
+        {
+            workers.shutdownNow();
+            Deflater deflater;
+            while ((deflater = freeDeflaters.poll()) != null)
+            {
+                deflater.end();
+            }
+            target.close();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private void submitCurrent() throws IOException
+    {
+        final Block block = current;
+        current = null;
+        isEmpty = false;
+        blocksInFlight.add(workers.submit(() -> compress(block)));
+        while (blocksInFlight.size() >= maxBlocksInFlight || (!blocksInFlight.isEmpty() && blocksInFlight.peek().isDone()))
+        {
+            writeOldestBlock();
+        }
+    }
+
+    private Block nextFreeBlock()
+    {
+        Block block = freeBlocks.poll();
+        if (block == null)
+        {
+            block = new Block(blockSize);
+        }
+        block.inputLength = 0;
+        return block;
+    }
+
+    /**
+     * Waits for the oldest block, writes it into the target channel and
+     * reuses it afterwards.
+     *
+     * @throws IOException if the block could not be compressed or written
+     */
+    private void writeOldestBlock() throws IOException
+    {
+        Block block;
+        try
+        {
+            block = blocksInFlight.poll().get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a compressed block");
+        }
+        catch (ExecutionException ex)
+        {
+            throw new IOException("Could not compress block", ex.getCause());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block.output, 0, block.outputLength);
+        while (buffer.hasRemaining())
+        {
+            target.write(buffer);
+        }
+        freeBlocks.add(block);
+    }
+
+    /**
+     * Compresses a block into a complete gzip member. Is executed by the
+     * workers.
+     *
+     * @param block the block to compress
+     * @return the block
+     */
+    private Block compress(Block block)
+    {
+        Deflater deflater = freeDeflaters.poll();
+        if (deflater == null)
+        {
+            deflater = new Deflater(level, true);
+        }
+        try
+        {
+            deflater.reset();
+            deflater.setInput(block.input, 0, block.inputLength);
+            deflater.finish();
+            System.arraycopy(GZIP_HEADER, 0, block.output, 0, GZIP_HEADER.length);
+            int length = GZIP_HEADER.length;
+            while (!deflater.finished())
+            {
+                if (length == block.output.length)
+                {
+                    block.growOutput();
+                }
+                length += deflater.deflate(block.output, length,
+                        block.output.length - length);
+            }
+            block.crc.reset();
+            block.crc.update(block.input, 0, block.inputLength);
+            if (block.output.length - length < GZIP_TRAILER_LENGTH)
+            {
+                block.growOutput();
+            }
+            length = putIntLE(block.output, length, (int) block.crc.getValue());
+            block.outputLength = putIntLE(block.output, length,
+                    block.inputLength);
+        }
+        finally
+        {
+            freeDeflaters.add(deflater);
+        }
+        return block;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static int putIntLE(byte[] array, int pos, int value)
+    {
+        array[pos] = (byte) value;
+        array[pos + 1] = (byte) (value >>> 8);
+        array[pos + 2] = (byte) (value >>> 16);
+        array[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Uncompressed input and compressed output of a block. Blocks are reused
+     * after they have been written.
+     */
+    private static class Block
+    {
+
+        private final byte[] input;
+        private final CRC32 crc = new CRC32();
+        private int inputLength = 0;
+        private byte[] output;
+        private int outputLength = 0;
+
+        public Block(int blockSize)
+        {
+            input = new byte[blockSize];
+            output = new byte[blockSize + blockSize / 8 + 64];
+        }
+
+        public void growOutput()
+        {
+            byte[] larger = new byte[output.length * 2];
+            System.arraycopy(output, 0, larger, 0, output.length);
+            output = larger;
+        }
+    }
+}
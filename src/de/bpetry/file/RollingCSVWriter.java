@@ -0,0 +1,260 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.file;
+
+import java.io.File;
+
+/**
+ * CSVWriter that splits its output into segments. A new segment is started
+ * when the current one reaches a number of bytes, rows or a time interval.
+ * The check is done right before a new row starts, so rows are never split
+ * between segments. The segments are named after the base file with an index
+ * before the extension, e.g. "data.csv" becomes "data.000000.csv",
+ * "data.000001.csv", ... Rolling output always uses the CHANNEL output mode,
+ * so that sizes are measured in encoded bytes.
+ *
+ * @author Benjamin Petry
+ */
+public class RollingCSVWriter extends CSVWriter
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final File baseFile;
+    private long maxBytes = 0;
+    private long maxRows = 0;
+    private long maxDuration = 0;
+    private Object[] header = null;
+    private int segment = 0;
+    private long segmentRows = 0;
+    private long segmentStart = 0;
+    private boolean isRolloverPending = false;
+    private boolean isRowRejected = false;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public RollingCSVWriter(String filename)
+    {
+        this(new File(filename));
+    }
+
+    public RollingCSVWriter(File f)
+    {
+        super(f);
+        baseFile = f;
+        setOutputMode(CSVOutputMode.CHANNEL);
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes the size in bytes after which a new segment is started
+     * (0 = unlimited)
+     */
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxRows()
+    {
+        return maxRows;
+    }
+
+    /**
+     * @param maxRows the number of rows (without header) after which a new
+     * segment is started (0 = unlimited)
+     */
+    public void setMaxRows(long maxRows)
+    {
+        this.maxRows = maxRows;
+    }
+
+    public long getMaxDuration()
+    {
+        return maxDuration;
+    }
+
+    /**
+     * @param maxDuration the time in ms after which a new segment is started
+     * (0 = unlimited)
+     */
+    public void setMaxDuration(long maxDuration)
+    {
+        this.maxDuration = maxDuration;
+    }
+
+    public Object[] getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Sets a header row that is written at the beginning of every segment.
+     *
+     * @param header the header fields or null for no header
+     */
+    public void setHeader(Object... header)
+    {
+        this.header = header;
+    }
+
+    /**
+     * @return the index of the current segment
+     */
+    public int getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * @return the number of rows (without header) in the current segment
+     */
+    public long getSegmentRows()
+    {
+        return segmentRows;
+    }
+
+    /**
+     * Rolling output measures the sizes of the segments in encoded bytes, so
+     * only the CHANNEL output mode is supported.
+     *
+     * @param outputMode the output mode (must be CHANNEL)
+     * @throws IllegalArgumentException if the output mode is not CHANNEL
+     */
+    @Override
+    public void setOutputMode(CSVOutputMode outputMode)
+    {
+        if (outputMode != CSVOutputMode.CHANNEL)
+        {
+            throw new IllegalArgumentException(
+                    "Rolling csv files can only be written in the CHANNEL output mode.");
+        }
+        super.setOutputMode(outputMode);
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Opens the first segment. In the append mode the last existing segment
+     * is opened and continued.
+     *
+     * @return true if the segment could be opened
+     */
+    @Override
+    public boolean open()
+    {
+        isRolloverPending = false;
+        isRowRejected = false;
+        segment = 0;
+        while (isAppend() && getSegmentFile(segment + 1).exists())
+        {
+            segment++;
+        }
+        return openSegment();
+    }
+
+    /**
+     * Starts a new segment if the current one is full. If the next segment
+     * cannot be opened, the row is rejected (see getLastError()) and the
+     * segment is opened again when the next row starts.
+     *
+     * @return false if the segment could not be opened
+     */
+    @Override
+    protected boolean beforeRow()
+    {
+        if (isRowRejected)
+        {
+            // the remaining fields of a rejected row are not written
+            return false;
+        }
+        if (isRolloverPending || isSegmentFull())
+        {
+            if (!isRolloverPending)
+            {
+                segment++;
+                isRolloverPending = true;
+            }
+            if (!openSegment())
+            {
+                isRowRejected = true;
+                return false;
+            }
+            isRolloverPending = false;
+        }
+        segmentRows++;
+        return true;
+    }
+
+    @Override
+    public boolean newLine()
+    {
+        isRowRejected = false;
+        return super.newLine();
+    }
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Protected Methods ///////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates the file of a segment. Override it to change the naming scheme.
+     *
+     * @param index the index of the segment
+     * @return the file of the segment
+     */
+    protected File getSegmentFile(int index)
+    {
+        String name = baseFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String extension = (dot > 0) ? name.substring(dot) : "";
+        return new File(baseFile.getParentFile(), String.format("%s.%06d%s",
+                base, index, extension));
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private boolean isSegmentFull()
+    {
+        return (maxRows > 0 && segmentRows >= maxRows)
+                || (maxDuration > 0 && System.currentTimeMillis() - segmentStart >= maxDuration)
+                || (maxBytes > 0 && getBytesWritten() >= maxBytes);
+    }
+
+    private boolean openSegment()
+    {
+        // the previous segment saves its index and state under its own name
+        close();
+        setFile(getSegmentFile(segment));
+        segmentRows = 0;
+        segmentStart = System.currentTimeMillis();
+        if (!super.open())
+        {
+            return false;
+        }
+        if (getRowsWritten() > 0)
+        {
+            // the segment has been resumed in the append mode
+            segmentRows = getRowsWritten() - ((header == null) ? 0 : 1);
+            return true;
+        }
+        boolean result = (header == null) || println(header);
+        segmentRows = 0;
+        return result;
+    }
+}
@@ -7,6 +7,8 @@
 package de.bpetry.math.statistics;
 
 import de.bpetry.util.Tuple;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -64,4 +66,330 @@ public class StatisticUtil
         }
         return (agreement - agreementByChanceSum) / (ratingTable.getSum() - agreementByChanceSum);
     }
+
+    /**
+     * Calculates Cohen's Kappa based on two arrays of ratings (e.g. Likert
+     * values or dictionary codes). The ratings with the same index form a
+     * rating pair. All pairs are counted, use cohensKappa(int[], int[],
+     * BitSet) to ignore missing ratings.
+     *
+     * @param ratingsX the ratings of the first reviewer
+     * @param ratingsY the ratings of the second reviewer
+     * @return Cohen's Kappa
+     */
+    public static double cohensKappa(int[] ratingsX, int[] ratingsY)
+    {
+        return cohensKappa(ratingsX, ratingsY, null);
+    }
+
+    /**
+     * Calculates Cohen's Kappa based on two arrays of ratings (e.g. Likert
+     * values or dictionary codes). The ratings with the same index form a
+     * rating pair. Pairs whose index is set in missing are ignored (e.g. the
+     * union of the missing values of two columns of a ColumnTable).
+     *
+     * @param ratingsX the ratings of the first reviewer
+     * @param ratingsY the ratings of the second reviewer
+     * @param missing the indices of the pairs to ignore (may be null)
+     * @return Cohen's Kappa
+     */
+    public static double cohensKappa(int[] ratingsX, int[] ratingsY,
+            BitSet missing)
+    {
+        if (ratingsX.length != ratingsY.length)
+        {
+            throw new IllegalArgumentException(
+                    "The rating arrays must have the same length.");
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int count = 0;
+        for (int n = 0; n < ratingsX.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                min = Math.min(min, Math.min(ratingsX[n], ratingsY[n]));
+                max = Math.max(max, Math.max(ratingsX[n], ratingsY[n]));
+                count++;
+            }
+        }
+        // sparse ratings are counted by the frequency table
+        if (count == 0 || (long) max - min >= Math.max(1024, 4L * count))
+        {
+            return cohensKappa(toPairs(ratingsX, ratingsY, missing));
+        }
+        long agreement = 0;
+        long[] agreementByChanceX = new long[max - min + 1];
+        long[] agreementByChanceY = new long[max - min + 1];
+        for (int n = 0; n < ratingsX.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                agreement += (ratingsX[n] == ratingsY[n]) ? 1 : 0;
+                agreementByChanceX[ratingsX[n] - min]++;
+                agreementByChanceY[ratingsY[n] - min]++;
+            }
+        }
+        double agreementByChanceSum = 0;
+        for (int n = 0; n < agreementByChanceX.length; n++)
+        {
+            agreementByChanceSum += agreementByChanceX[n] * agreementByChanceY[n] / (double) count;
+        }
+        return (agreement - agreementByChanceSum) / (count - agreementByChanceSum);
+    }
+
+    /**
+     * Calculates the arithmetic mean. NaN values (e.g. missing values) are
+     * ignored.
+     *
+     * @param values the values
+     * @return the mean or NaN if there are no values
+     */
+    public static double mean(double[] values)
+    {
+        double sum = 0;
+        int count = 0;
+        for (double value : values)
+        {
+            if (!Double.isNaN(value))
+            {
+                sum += value;
+                count++;
+            }
+        }
+        return (count == 0) ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Calculates the arithmetic mean of all values. Use mean(int[], BitSet)
+     * to ignore missing values.
+     *
+     * @param values the values
+     * @return the mean or NaN if there are no values
+     */
+    public static double mean(int[] values)
+    {
+        return mean(values, null);
+    }
+
+    /**
+     * Calculates the arithmetic mean. Values whose index is set in missing
+     * are ignored (e.g. ColumnTable.getMissing()).
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the mean or NaN if there are no values
+     */
+    public static double mean(int[] values, BitSet missing)
+    {
+        long sum = 0;
+        int count = 0;
+        for (int n = 0; n < values.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                sum += values[n];
+                count++;
+            }
+        }
+        return (count == 0) ? Double.NaN : sum / (double) count;
+    }
+
+    /**
+     * Calculates the arithmetic mean of all values. Use mean(long[], BitSet)
+     * to ignore missing values.
+     *
+     * @param values the values
+     * @return the mean or NaN if there are no values
+     */
+    public static double mean(long[] values)
+    {
+        return mean(values, null);
+    }
+
+    /**
+     * Calculates the arithmetic mean. Values whose index is set in missing
+     * are ignored (e.g. ColumnTable.getMissing()).
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the mean or NaN if there are no values
+     */
+    public static double mean(long[] values, BitSet missing)
+    {
+        double sum = 0;
+        int count = 0;
+        for (int n = 0; n < values.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                sum += values[n];
+                count++;
+            }
+        }
+        return (count == 0) ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Calculates the sample variance (divided by n - 1) with Welford's
+     * algorithm. NaN values (e.g. missing values) are ignored.
+     *
+     * @param values the values
+     * @return the variance or NaN if there are less than 2 values
+     */
+    public static double variance(double[] values)
+    {
+        double mean = 0;
+        double squares = 0;
+        int count = 0;
+        for (double value : values)
+        {
+            if (!Double.isNaN(value))
+            {
+                count++;
+                double delta = value - mean;
+                mean += delta / count;
+                squares += delta * (value - mean);
+            }
+        }
+        return (count < 2) ? Double.NaN : squares / (count - 1);
+    }
+
+    /**
+     * Calculates the sample variance of all values. Use variance(int[],
+     * BitSet) to ignore missing values.
+     *
+     * @param values the values
+     * @return the variance or NaN if there are less than 2 values
+     */
+    public static double variance(int[] values)
+    {
+        return variance(values, null);
+    }
+
+    /**
+     * Calculates the sample variance (divided by n - 1) with Welford's
+     * algorithm. Values whose index is set in missing are ignored.
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the variance or NaN if there are less than 2 values
+     */
+    public static double variance(int[] values, BitSet missing)
+    {
+        double mean = 0;
+        double squares = 0;
+        int count = 0;
+        for (int n = 0; n < values.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                count++;
+                double delta = values[n] - mean;
+                mean += delta / count;
+                squares += delta * (values[n] - mean);
+            }
+        }
+        return (count < 2) ? Double.NaN : squares / (count - 1);
+    }
+
+    /**
+     * Calculates the sample variance of all values. Use variance(long[],
+     * BitSet) to ignore missing values.
+     *
+     * @param values the values
+     * @return the variance or NaN if there are less than 2 values
+     */
+    public static double variance(long[] values)
+    {
+        return variance(values, null);
+    }
+
+    /**
+     * Calculates the sample variance (divided by n - 1) with Welford's
+     * algorithm. Values whose index is set in missing are ignored.
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the variance or NaN if there are less than 2 values
+     */
+    public static double variance(long[] values, BitSet missing)
+    {
+        double mean = 0;
+        double squares = 0;
+        int count = 0;
+        for (int n = 0; n < values.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                count++;
+                double delta = values[n] - mean;
+                mean += delta / count;
+                squares += delta * (values[n] - mean);
+            }
+        }
+        return (count < 2) ? Double.NaN : squares / (count - 1);
+    }
+
+    /**
+     * Calculates the sample standard deviation. NaN values (e.g. missing
+     * values) are ignored.
+     *
+     * @param values the values
+     * @return the standard deviation or NaN if there are less than 2 values
+     */
+    public static double standardDeviation(double[] values)
+    {
+        return Math.sqrt(variance(values));
+    }
+
+    public static double standardDeviation(int[] values)
+    {
+        return Math.sqrt(variance(values));
+    }
+
+    /**
+     * Calculates the sample standard deviation. Values whose index is set in
+     * missing are ignored.
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the standard deviation or NaN if there are less than 2 values
+     */
+    public static double standardDeviation(int[] values, BitSet missing)
+    {
+        return Math.sqrt(variance(values, missing));
+    }
+
+    public static double standardDeviation(long[] values)
+    {
+        return Math.sqrt(variance(values));
+    }
+
+    /**
+     * Calculates the sample standard deviation. Values whose index is set in
+     * missing are ignored.
+     *
+     * @param values the values
+     * @param missing the indices of the missing values (may be null)
+     * @return the standard deviation or NaN if there are less than 2 values
+     */
+    public static double standardDeviation(long[] values, BitSet missing)
+    {
+        return Math.sqrt(variance(values, missing));
+    }
+
+    private static List<Tuple<Integer, Integer>> toPairs(int[] ratingsX,
+            int[] ratingsY, BitSet missing)
+    {
+        List<Tuple<Integer, Integer>> pairs = new ArrayList<>(ratingsX.length);
+        for (int n = 0; n < ratingsX.length; n++)
+        {
+            if (missing == null || !missing.get(n))
+            {
+                pairs.add(new Tuple<>(ratingsX[n], ratingsY[n]));
+            }
+        }
+        return pairs;
+    }
 }
@@ -6,35 +6,95 @@
  */
 package de.bpetry.util;
 
+import de.bpetry.events.EventHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 /**
  * Loads data from a configuration file
  *
+ * The values are kept in an immutable snapshot (see ConfigSnapshot) behind a
+ * volatile reference. Readers never lock. Every change (set(), setBool(),
+ * setNull(), load() and checkDefaultProperty()) creates a new snapshot and
+ * publishes it atomically. Code that reads several values that belong
+ * together should pin one snapshot with getSnapshot(). The keys are sorted,
+ * so the values are always saved in the same order.
+ *
+ * The typed getters parse every value only once. Values that are read very
+ * often (e.g. per event) should be read by a ConfigKey, which skips the
+ * lookup as well.
+ *
+ * Parsing the XML file is slow, therefore a compact binary image of the
+ * values is kept next to it (see getCacheFile()). load() reads the image
+ * instead of parsing the XML file as long as the length and the checksum
+ * (CRC32) of the XML file are unchanged, and rewrites it otherwise. save()
+ * writes both. A file that is reloaded after a change is always parsed.
+ *
+ * Every added, changed or removed value raises a ValueChanged event after
+ * the new snapshot has been published. With startWatching() the file is
+ * reloaded automatically when it is changed by another program.
+ *
  * @author Benjamin Petry
  */
 public class Config
 {
 
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static long DEFAULT_RELOAD_DELAY = 500;
+    final public static String CACHE_EXTENSION = ".cache";
+    final private static int CACHE_MAGIC = 0x42504343; // "BPCC"
+    final private static int CACHE_VERSION = 2;
+
     //-------------------------------------------------------------------------
     ////////////////////////////  Private Variables ///////////////////////////
     //-------------------------------------------------------------------------       
-    private Properties p = null;
-    private File file = null;
+    private volatile ConfigSnapshot snapshot = ConfigSnapshot.EMPTY;
+    private ConfigSnapshot pending = null; // loaded, but not published yet
+    private volatile File file = null;
     private boolean hasToBeUpdated = false;
+    private long reloadDelay = DEFAULT_RELOAD_DELAY;
+    private volatile boolean isCached = true;
+    private ConfigWatcher watcher = null;
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Raised once for every added, changed or removed value (by the thread
+     * that changed it, the watcher thread for reloaded files).
+     */
+    public final EventHandler<ConfigChangeEvent> ValueChanged = new EventHandler<>();
 
     //-------------------------------------------------------------------------
     //////////////////////////////  Constructor ///////////////////////////////
@@ -42,7 +102,6 @@ public class Config
     public Config()
     {
         super();
-        p = getAlphabeticalSortedProperties();
         update();
     }
 
@@ -66,42 +125,67 @@ public class Config
 
     public double getDouble(String key)
     {
-        return Double.parseDouble(get(key));
+        return snapshot.getDouble(key);
     }
 
     public int getInt(String key)
     {
-        return Integer.parseInt(get(key));
+        return snapshot.getInt(key);
     }
 
     public boolean getBool(String key)
     {
-        return Boolean.parseBoolean(get(key));
+        return snapshot.getBool(key);
     }
 
     public long getLong(String key)
     {
-        return Long.parseLong(get(key));
+        return snapshot.getLong(key);
     }
 
     public boolean isNull(String key)
     {
-        return get(key).equals("null");
+        return snapshot.isNull(key);
     }
 
     public String get(String key)
     {
-        return p.getProperty(key);
+        return snapshot.get(key);
     }
 
     public void set(String key, String value)
     {
-        p.setProperty(key, value);
+        ConfigSnapshot previous;
+        ConfigSnapshot current;
+        synchronized (this)
+        {
+            previous = snapshot;
+            current = previous.with(key, value);
+            snapshot = current;
+        }
+        raiseChanges(previous, current);
+    }
+
+    /**
+     * @return the current values. The snapshot does not change, so all values
+     * read from it belong together.
+     */
+    public ConfigSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @return the sorted keys of the current values
+     */
+    public List<String> getKeys()
+    {
+        return snapshot.getKeys();
     }
 
     public void setBool(String key, boolean value)
     {
-        p.setProperty(key, (value) ? "true" : "false");
+        set(key, (value) ? "true" : "false");
     }
 
     public void setNull(String key)
@@ -109,29 +193,156 @@ public class Config
         set(key, "null");
     }
 
+    public synchronized long getReloadDelay()
+    {
+        return reloadDelay;
+    }
+
+    /**
+     * @param reloadDelay the time in milliseconds the file must not have been
+     * changed before it is reloaded (default: 500). Takes effect with the next
+     * call of startWatching().
+     */
+    public synchronized void setReloadDelay(long reloadDelay)
+    {
+        this.reloadDelay = Math.max(reloadDelay, 0);
+    }
+
+    public boolean isCached()
+    {
+        return isCached;
+    }
+
+    /**
+     * @param isCached true to read and write the binary image next to the
+     * XML file (default)
+     */
+    public void setCached(boolean isCached)
+    {
+        this.isCached = isCached;
+    }
+
+    public synchronized boolean isWatching()
+    {
+        return watcher != null;
+    }
+
     //-------------------------------------------------------------------------
     /////////////////////////////  Public Methods /////////////////////////////
     //-------------------------------------------------------------------------
     public void load(File f)
     {
         this.file = f;
-        if (p != null)
+        Map<String, String> values;
+        try
         {
-            p.clear();
+            values = read(f, isCached);
         }
-        if (f.exists())
+        catch (IOException ex)
         {
-            try (InputStream is = new FileInputStream(f))
-            {
-                p.loadFromXML(is);
-            }
-            catch (IOException ex)
-            {
-                Log.error("Cannot load configuration file", ex);
-            }
+            Log.error("Cannot load configuration file", ex);
+            values = new HashMap<>();
         }
-        update();
-        afterLoad();
+        apply(values);
+    }
+
+    /**
+     * Watches the file for changes by other programs. A changed file is
+     * parsed by a background thread and swapped in atomically like load().
+     * Files that cannot be parsed (e.g. while they are written) are ignored.
+     *
+     * @return true if the file is watched
+     * @throws IllegalStateException if no file has been loaded
+     */
+    public synchronized boolean startWatching()
+    {
+        if (file == null)
+        {
+            throw new IllegalStateException(
+                    "The startWatching() method can only be called after loading a file.");
+        }
+        stopWatching();
+        try
+        {
+            watcher = new ConfigWatcher(this, file, reloadDelay);
+            return true;
+        }
+        catch (IOException ex)
+        {
+            Log.error("Cannot watch configuration file", ex);
+            return false;
+        }
+    }
+
+    public void stopWatching()
+    {
+        ConfigWatcher stopped;
+        synchronized (this)
+        {
+            stopped = watcher;
+            watcher = null;
+        }
+        if (stopped != null)
+        {
+            stopped.stop();
+        }
+    }
+
+    /**
+     * Creates a handle of an int value. The handle parses the value only once
+     * and again after the value has been changed.
+     *
+     * @param key the key of the value
+     * @return the handle
+     */
+    public ConfigKey<Integer> intKey(String key)
+    {
+        return new ConfigKey<>(this, key, Integer::valueOf);
+    }
+
+    /**
+     * @param key the key of the value
+     * @return the handle of a long value
+     * @see #intKey(java.lang.String)
+     */
+    public ConfigKey<Long> longKey(String key)
+    {
+        return new ConfigKey<>(this, key, Long::valueOf);
+    }
+
+    /**
+     * @param key the key of the value
+     * @return the handle of a double value
+     * @see #intKey(java.lang.String)
+     */
+    public ConfigKey<Double> doubleKey(String key)
+    {
+        return new ConfigKey<>(this, key, Double::valueOf);
+    }
+
+    /**
+     * @param key the key of the value
+     * @return the handle of a boolean value
+     * @see #intKey(java.lang.String)
+     */
+    public ConfigKey<Boolean> boolKey(String key)
+    {
+        return new ConfigKey<>(this, key, Boolean::valueOf);
+    }
+
+    /**
+     * Creates a handle of a value of any type.
+     *
+     * @param <T> the type of the value
+     * @param key the key of the value
+     * @param parser converts the string of the value (may be null if the key
+     * does not exist)
+     * @return the handle
+     * @see #intKey(java.lang.String)
+     */
+    public <T> ConfigKey<T> key(String key, Function<String, ? extends T> parser)
+    {
+        return new ConfigKey<>(this, key, parser);
     }
 
     public void save()
@@ -151,9 +362,21 @@ public class Config
         {
             return;
         }
-        try (OutputStream is = new FileOutputStream(file))
+        ConfigSnapshot values = snapshot;
+        try
         {
-            p.storeToXML(is, getDescription());
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    xml, StandardCharsets.UTF_8)))
+            {
+                storeToXML(writer, getDescription(), values);
+            }
+            byte[] bytes = xml.toByteArray();
+            Files.write(file.toPath(), bytes);
+            if (isCached)
+            {
+                writeCache(file, bytes, values);
+            }
         }
         catch (IOException ex)
         {
@@ -167,11 +390,30 @@ public class Config
     //-------------------------------------------------------------------------
     protected void checkDefaultProperty(String key, String value)
     {
-        if (!p.containsKey(key))
+        ConfigSnapshot previous;
+        ConfigSnapshot current;
+        synchronized (this)
         {
-            p.setProperty(key, value);
+            if (pending != null)
+            {
+                // the defaults of a loaded file are published with its values
+                if (!pending.contains(key))
+                {
+                    pending = pending.with(key, value);
+                    hasToBeUpdated = true;
+                }
+                return;
+            }
+            previous = snapshot;
+            if (previous.contains(key))
+            {
+                return;
+            }
+            current = previous.with(key, value);
+            snapshot = current;
             hasToBeUpdated = true;
         }
+        raiseChanges(previous, current);
     }
 
     /**
@@ -212,6 +454,248 @@ public class Config
     //-------------------------------------------------------------------------
     /////////////////////////////  Private Methods ////////////////////////////
     //-------------------------------------------------------------------------
+    /**
+     * Reloads the file after it has been changed (see ConfigWatcher). Unlike
+     * load(), the values are kept if the file cannot be read. The XML file is
+     * always parsed, since it is known to have changed.
+     */
+    void reload()
+    {
+        File f = file;
+        if (f == null || !f.exists())
+        {
+            return;
+        }
+        try
+        {
+            apply(read(f, false));
+        }
+        catch (IOException ex)
+        {
+            Log.error("Cannot reload configuration file", ex);
+        }
+    }
+
+    /**
+     * Adds the default values to the loaded values, publishes them and raises
+     * the events of the changes. Readers never see the loaded values without
+     * the defaults.
+     */
+    private void apply(Map<String, String> values)
+    {
+        ConfigSnapshot previous;
+        ConfigSnapshot current;
+        boolean hasDefaults;
+        synchronized (this)
+        {
+            previous = snapshot;
+            pending = ConfigSnapshot.of(values, previous);
+            try
+            {
+                hasToBeUpdated = false;
+                checkDefaultProperties();
+                current = pending;
+                hasDefaults = hasToBeUpdated;
+            }
+            finally
+            {
+                pending = null;
+            }
+            snapshot = current;
+        }
+        raiseChanges(previous, current);
+        if (hasDefaults && file != null)
+        {
+            save();
+        }
+        afterLoad();
+    }
+
+    /**
+     * Raises an event for every value that differs between two snapshots.
+     * The keys are sorted, so both snapshots are compared in one pass.
+     */
+    private void raiseChanges(ConfigSnapshot previous, ConfigSnapshot current)
+    {
+        if (previous == current)
+        {
+            return;
+        }
+        List<String> oldKeys = previous.getKeys();
+        List<String> newKeys = current.getKeys();
+        int o = 0;
+        int n = 0;
+        while (o < oldKeys.size() || n < newKeys.size())
+        {
+            int order = (o == oldKeys.size()) ? 1 : (n == newKeys.size()) ? -1
+                    : oldKeys.get(o).compareTo(newKeys.get(n));
+            String key = (order <= 0) ? oldKeys.get(o++) : newKeys.get(n++);
+            if (order == 0)
+            {
+                n++;
+            }
+            String oldValue = (order <= 0) ? previous.get(key) : null;
+            String newValue = (order >= 0) ? current.get(key) : null;
+            if (oldValue == null || !oldValue.equals(newValue))
+            {
+                ValueChanged.raise(this, new ConfigChangeEvent(key, oldValue,
+                        newValue, current));
+            }
+        }
+    }
+
+    /**
+     * Writes the values in the XML format of java.util.Properties (UTF-8) in
+     * the order of the keys.
+     */
+    private void storeToXML(Writer writer, String comment,
+            ConfigSnapshot values) throws IOException
+    {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        writer.write("<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n");
+        writer.write("<properties>\n");
+        if (comment != null)
+        {
+            writer.write("<comment>");
+            writeEscaped(writer, comment);
+            writer.write("</comment>\n");
+        }
+        for (String key : values.getKeys())
+        {
+            writer.write("<entry key=\"");
+            writeEscaped(writer, key);
+            writer.write("\">");
+            writeEscaped(writer, values.get(key));
+            writer.write("</entry>\n");
+        }
+        writer.write("</properties>\n");
+    }
+
+    /**
+     * @param useCache true to read the values from the binary image if it
+     * belongs to the content of the file
+     * @return the values of a file (empty if the file does not exist)
+     */
+    private Map<String, String> read(File f, boolean useCache)
+            throws IOException
+    {
+        Map<String, String> values = new HashMap<>();
+        if (!f.exists())
+        {
+            return values;
+        }
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        if (useCache && readCache(f, bytes, values))
+        {
+            return values;
+        }
+        values.clear();
+        Properties loaded = new Properties();
+        try (InputStream is = new ByteArrayInputStream(bytes))
+        {
+            loaded.loadFromXML(is);
+        }
+        for (String key : loaded.stringPropertyNames())
+        {
+            values.put(key, loaded.getProperty(key));
+        }
+        if (isCached)
+        {
+            try
+            {
+                writeCache(f, bytes, ConfigSnapshot.of(values, ConfigSnapshot.EMPTY));
+            }
+            catch (IOException ex)
+            {
+                Log.warning("Cannot write configuration cache", ex);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads the binary image of a file.
+     *
+     * @param f the XML file
+     * @param xml the content of the XML file
+     * @param values the map that receives the values
+     * @return false if there is no image or it does not belong to the content
+     * of the file
+     */
+    private boolean readCache(File f, byte[] xml, Map<String, String> values)
+    {
+        File cache = getCacheFile(f);
+        if (!cache.exists())
+        {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(cache))))
+        {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION
+                    || in.readLong() != xml.length
+                    || in.readLong() != checksum(xml))
+            {
+                return false;
+            }
+            int count = in.readInt();
+            for (int n = 0; n < count; n++)
+            {
+                values.put(readString(in, cache.length()),
+                        readString(in, cache.length()));
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            Log.warning("Cannot read configuration cache " + cache, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the binary image of a file. The image is replaced atomically, so
+     * concurrent readers never see a partly written image.
+     *
+     * @param f the XML file (already written)
+     * @param xml the content of the XML file
+     * @param values the values of the file
+     */
+    private void writeCache(File f, byte[] xml, ConfigSnapshot values)
+            throws IOException
+    {
+        File cache = getCacheFile(f);
+        File temp = File.createTempFile(cache.getName(), ".tmp",
+                cache.getAbsoluteFile().getParentFile());
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp))))
+            {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeLong(xml.length);
+                out.writeLong(checksum(xml));
+                out.writeInt(values.size());
+                for (String key : values.getKeys())
+                {
+                    writeString(out, key);
+                    writeString(out, values.get(key));
+                }
+            }
+            Files.move(temp.toPath(), cache.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            if (temp.exists() && !temp.delete())
+            {
+                Log.warning("Could not delete temporary file " + temp);
+            }
+        }
+    }
+
     private void update()
     {
         hasToBeUpdated = false;
@@ -224,9 +708,102 @@ public class Config
         }
     }
 
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static long checksum(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static String readString(DataInputStream in, long limit)
+            throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > limit)
+        {
+            throw new EOFException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String text)
+            throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Escapes the markup characters and the characters that an XML parser
+     * would normalize (line breaks and tabs), so the values are loaded
+     * unchanged.
+     */
+    private static void writeEscaped(Writer writer, String text)
+            throws IOException
+    {
+        int start = 0;
+        for (int n = 0; n < text.length(); n++)
+        {
+            String escaped;
+            switch (text.charAt(n))
+            {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                case '\t':
+                    escaped = "&#9;";
+                    break;
+                case '\n':
+                    escaped = "&#10;";
+                    break;
+                case '\r':
+                    escaped = "&#13;";
+                    break;
+                default:
+                    continue;
+            }
+            writer.write(text, start, n - start);
+            writer.write(escaped);
+            start = n + 1;
+        }
+        writer.write(text, start, text.length() - start);
+    }
+
     //-------------------------------------------------------------------------
     /////////////////////////  Public Static Methods //////////////////////////
     //-------------------------------------------------------------------------
+    /**
+     * @param f the XML file of a config
+     * @return the file of the binary image (e.g. config.xml.cache)
+     */
+    public static File getCacheFile(File f)
+    {
+        return new File(f.getPath() + CACHE_EXTENSION);
+    }
+
+    /**
+     * @return properties that are enumerated and saved in the order of their
+     * keys
+     * @deprecated Config keeps its values sorted and does not use Properties
+     * anymore. Every enumeration of these properties copies and sorts all
+     * keys.
+     */
+    @Deprecated
     public static Properties getAlphabeticalSortedProperties()
     {
         return new Properties()
@@ -239,10 +816,6 @@ public class Config
             public synchronized Enumeration<Object> keys()
             {
                 Set<Object> tmpSet = new TreeSet<>(super.keySet());
-                for (Object s : tmpSet)
-                {
-                    System.out.println(s.toString());
-                }
                 return Collections.enumeration(tmpSet);
             }
 
@@ -283,5 +856,4 @@ public class Config
 
         };
     }
-
 }
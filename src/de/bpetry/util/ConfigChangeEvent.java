@@ -0,0 +1,47 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.util;
+
+import de.bpetry.events.EventParam;
+
+/**
+ * Describes the change of a value of a Config (see Config.ValueChanged). The
+ * type is ADDED, CHANGED or REMOVED.
+ *
+ * @author Benjamin Petry
+ */
+public class ConfigChangeEvent extends EventParam
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static String ADDED = "added";
+    final public static String CHANGED = "changed";
+    final public static String REMOVED = "removed";
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    public final String Key;
+    public final String OldValue; // null if the value has been added
+    public final String NewValue; // null if the value has been removed
+    public final ConfigSnapshot Snapshot; // the values after the change
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    public ConfigChangeEvent(String key, String oldValue, String newValue,
+            ConfigSnapshot snapshot)
+    {
+        super((oldValue == null) ? ADDED : (newValue == null) ? REMOVED : CHANGED);
+        this.Key = key;
+        this.OldValue = oldValue;
+        this.NewValue = newValue;
+        this.Snapshot = snapshot;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.util;
+
+import java.util.function.Function;
+
+/**
+ * Handle of a value of a Config. The handle is created once (e.g. in a field)
+ * and parses the value only when it is read for the first time or after the
+ * value has changed. As long as the Config publishes no new snapshot, reading
+ * the value costs two volatile reads.
+ * <pre>
+ * ConfigKey&lt;Integer&gt; threads = config.intKey("threads");
+ * ...
+ * int n = threads.get();
+ * </pre>
+ *
+ * @param <T> the type of the value
+ * @author Benjamin Petry
+ */
+public final class ConfigKey<T>
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final Config config;
+    private final String key;
+    private final Function<String, ? extends T> parser;
+    private volatile Parsed<T> parsed = null;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @param config the config of the value
+     * @param key the key of the value
+     * @param parser converts the string of the value (may be null if the key
+     * does not exist)
+     * @see Config#key(java.lang.String, java.util.function.Function)
+     */
+    public ConfigKey(Config config, String key,
+            Function<String, ? extends T> parser)
+    {
+        this.config = config;
+        this.key = key;
+        this.parser = parser;
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    public Config getConfig()
+    {
+        return config;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the current value
+     * @throws RuntimeException if the value cannot be parsed (e.g. a
+     * NumberFormatException like the getters of the Config)
+     */
+    public T get()
+    {
+        return get(config.getSnapshot());
+    }
+
+    /**
+     * @param snapshot a snapshot of the config (see Config.getSnapshot())
+     * @return the value in the snapshot
+     * @throws RuntimeException if the value cannot be parsed
+     */
+    public T get(ConfigSnapshot snapshot)
+    {
+        Parsed<T> current = parsed;
+        if (current == null || current.snapshot != snapshot)
+        {
+            String raw = snapshot.get(key);
+            // other values have changed, this one is parsed again only if it
+            // has changed as well
+            current = new Parsed<>(snapshot, raw,
+                    (current != null && current.raw == raw) ? current.value
+                    : parser.apply(raw));
+            parsed = current;
+        }
+        return current.value;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public String toString()
+    {
+        return key + "=" + config.get(key);
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    private static class Parsed<T>
+    {
+
+        private final ConfigSnapshot snapshot;
+        private final String raw;
+        private final T value;
+
+        public Parsed(ConfigSnapshot snapshot, String raw, T value)
+        {
+            this.snapshot = snapshot;
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+}
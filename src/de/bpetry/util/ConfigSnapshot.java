@@ -0,0 +1,233 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable state of all values of a Config. A Config publishes a new
+ * snapshot for every change, so readers never lock and a snapshot that is
+ * pinned (see Config.getSnapshot()) stays consistent while the Config is
+ * changed. The keys are kept sorted for saving and iterating.
+ *
+ * The typed getters parse every value only once. Unchanged values share their
+ * parsed forms with the previous snapshot.
+ *
+ * @author Benjamin Petry
+ */
+public final class ConfigSnapshot
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    final public static ConfigSnapshot EMPTY = new ConfigSnapshot(
+            new String[0], new HashMap<>());
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final String[] keys; // sorted
+    private final Map<String, Value> values; // never changed after creation
+    private final List<String> keyList;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    private ConfigSnapshot(String[] keys, Map<String, Value> values)
+    {
+        this.keys = keys;
+        this.values = values;
+        this.keyList = Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////  Getter and Setter Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return the sorted keys of all values
+     */
+    public List<String> getKeys()
+    {
+        return keyList;
+    }
+
+    public int size()
+    {
+        return keys.length;
+    }
+
+    public boolean contains(String key)
+    {
+        return values.containsKey(key);
+    }
+
+    public String get(String key)
+    {
+        return getValue(key).raw;
+    }
+
+    public double getDouble(String key)
+    {
+        Value value = getValue(key);
+        if ((value.parsed & Value.DOUBLE) == 0)
+        {
+            value.doubleValue = Double.parseDouble(value.raw);
+            value.parsed |= Value.DOUBLE;
+        }
+        return value.doubleValue;
+    }
+
+    public int getInt(String key)
+    {
+        Value value = getValue(key);
+        if ((value.parsed & Value.INT) == 0)
+        {
+            value.intValue = Integer.parseInt(value.raw);
+            value.parsed |= Value.INT;
+        }
+        return value.intValue;
+    }
+
+    public boolean getBool(String key)
+    {
+        Value value = getValue(key);
+        if ((value.parsed & Value.BOOL) == 0)
+        {
+            value.boolValue = Boolean.parseBoolean(value.raw);
+            value.parsed |= Value.BOOL;
+        }
+        return value.boolValue;
+    }
+
+    public long getLong(String key)
+    {
+        Value value = getValue(key);
+        if ((value.parsed & Value.LONG) == 0)
+        {
+            value.longValue = Long.parseLong(value.raw);
+            value.parsed |= Value.LONG;
+        }
+        return value.longValue;
+    }
+
+    public boolean isNull(String key)
+    {
+        return get(key).equals("null");
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates a snapshot with a changed value (copy on write). The parsed
+     * forms of all other values are shared.
+     *
+     * @param key the key of the value
+     * @param value the new value
+     * @return the new snapshot or this snapshot if the value is unchanged
+     */
+    public ConfigSnapshot with(String key, String value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException();
+        }
+        Value old = values.get(key);
+        if (old != null && old.raw.equals(value))
+        {
+            return this;
+        }
+        Map<String, Value> changed = new HashMap<>(values);
+        changed.put(key, new Value(value));
+        String[] changedKeys = keys;
+        if (old == null)
+        {
+            int index = -Arrays.binarySearch(keys, key) - 1;
+            changedKeys = new String[keys.length + 1];
+            System.arraycopy(keys, 0, changedKeys, 0, index);
+            changedKeys[index] = key;
+            System.arraycopy(keys, index, changedKeys, index + 1,
+                    keys.length - index);
+        }
+        return new ConfigSnapshot(changedKeys, changed);
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    private Value getValue(String key)
+    {
+        Value value = values.get(key);
+        return (value != null) ? value : Value.MISSING;
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Public Static Methods /////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Creates a snapshot of values. Values that are unchanged in comparison
+     * to the previous snapshot share its parsed forms.
+     *
+     * @param map the values
+     * @param previous the previous snapshot (may be EMPTY)
+     * @return the snapshot
+     */
+    public static ConfigSnapshot of(Map<String, String> map,
+            ConfigSnapshot previous)
+    {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+        Map<String, Value> values = new HashMap<>(2 * keys.length);
+        for (String key : keys)
+        {
+            String raw = map.get(key);
+            if (raw == null)
+            {
+                throw new NullPointerException("The value of " + key + " is null.");
+            }
+            Value old = previous.values.get(key);
+            values.put(key, (old != null && old.raw.equals(raw)) ? old
+                    : new Value(raw));
+        }
+        return new ConfigSnapshot(keys, values);
+    }
+
+    //-------------------------------------------------------------------------
+    ///////////////////////////////  Inner Classes ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * The string of a value and its parsed forms. Every form is parsed when
+     * it is requested for the first time. Concurrent requests may parse a
+     * form twice, but never read a form before its flag is set.
+     */
+    private static class Value
+    {
+
+        private static final int INT = 1;
+        private static final int LONG = 2;
+        private static final int DOUBLE = 4;
+        private static final int BOOL = 8;
+        private static final Value MISSING = new Value(null);
+
+        private final String raw;
+        private volatile int parsed = 0;
+        private int intValue;
+        private long longValue;
+        private double doubleValue;
+        private boolean boolValue;
+
+        public Value(String raw)
+        {
+            this.raw = raw;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the file of a Config and reloads it when it has been changed (see
+ * Config.startWatching()). The directory of the file is watched, so files
+ * that are replaced (e.g. by editors that save into a new file and rename it)
+ * are noticed as well. Rapid changes are debounced: the file is reloaded
+ * when it has not been changed for the reload delay.
+ *
+ * @author Benjamin Petry
+ */
+final class ConfigWatcher implements Runnable
+{
+
+    //-------------------------------------------------------------------------
+    ////////////////////////////  Private Variables ///////////////////////////
+    //-------------------------------------------------------------------------
+    private final Config config;
+    private final Path fileName;
+    private final long delay;
+    private final WatchService service;
+    private final Thread thread;
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Starts watching a file.
+     *
+     * @param config the config to reload
+     * @param file the file of the config
+     * @param delay the reload delay in milliseconds
+     * @throws IOException if the directory of the file cannot be watched
+     */
+    public ConfigWatcher(Config config, File file, long delay) throws IOException
+    {
+        Path path = file.toPath().toAbsolutePath();
+        this.config = config;
+        this.fileName = path.getFileName();
+        this.delay = delay;
+        this.service = FileSystems.getDefault().newWatchService();
+        try
+        {
+            path.getParent().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            service.close();
+            throw ex;
+        }
+        thread = new Thread(this, "Config-Watcher-" + fileName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Public Methods /////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Stops watching and waits until a running reload has finished (unless
+     * it is called by a listener during the reload).
+     */
+    public void stop()
+    {
+        try
+        {
+            service.close();
+        }
+        catch (IOException ex)
+        {
+            Log.warning("Could not close watch service", ex);
+        }
+        if (Thread.currentThread() == thread)
+        {
+            return;
+        }
+        thread.interrupt();
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////  Parent Methods Implementation /////////////////////
+    //-------------------------------------------------------------------------
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                if (!isFileChanged(service.take()))
+                {
+                    continue;
+                }
+                // waits until the file has not been changed for the delay
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(delay);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0)
+                {
+                    WatchKey key = service.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (key != null && isFileChanged(key))
+                    {
+                        deadline = System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(delay);
+                    }
+                }
+                try
+                {
+                    config.reload();
+                }
+                catch (RuntimeException ex)
+                {
+                    Log.error("Could not reload configuration file", ex);
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ex)
+        {
+            // watching has been stopped
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////////  Private Methods ////////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * @return true if one of the events of the key concerns the file (or
+     * events have been lost)
+     */
+    private boolean isFileChanged(WatchKey key)
+    {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || fileName.equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+}
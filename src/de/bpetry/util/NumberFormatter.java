@@ -0,0 +1,669 @@
+/*
+ * Benjamin Petry (www.bpetry.de)
+ * Copyright 2017 by Benjamin Petry.
+ * This software is provided on an "AS IS" BASIS,
+ * without warranties or conditions of any kind, either express or implied.
+ */
+package de.bpetry.util;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers directly into char or byte arrays without creating
+ * intermediate Strings. Doubles and floats are written with the shortest
+ * digits that are parsed back into the same value (Ryu algorithm by Ulf
+ * Adams). The layout is the one of Double.toString(): "123.0", "0.001",
+ * "1.0E7", "1.5E-4", "NaN", "Infinity". Fixed precision formatting rounds the
+ * shortest digits half up like String.format("%.2f").
+ * <pre>
+ * char[] chars = new char[NumberFormatter.MAX_LENGTH];
+ * int length = NumberFormatter.format(0.1 + 0.2, chars, 0); // 0.30000000000000004
+ * </pre> The bytes written into byte arrays are US-ASCII (and thereby UTF-8)
+ * characters.
+ *
+ * @author Benjamin Petry
+ */
+public final class NumberFormatter
+{
+    //-------------------------------------------------------------------------
+    ////////////////////////////////  Constants ///////////////////////////////
+    //-------------------------------------------------------------------------
+
+    /**
+     * The maximum number of chars of a formatted double, float, long or int
+     * (e.g. "-2.2250738585072014E-308" or "-9223372036854775808")
+     */
+    final public static int MAX_LENGTH = 24;
+
+    final private static int DOUBLE_MANTISSA_BITS = 52;
+    final private static int DOUBLE_EXPONENT_BIAS = 1023;
+    final private static int FLOAT_MANTISSA_BITS = 23;
+    final private static int FLOAT_EXPONENT_BIAS = 127;
+    final private static int REMOVED_BITS = 6; // see shortestDecimal()
+    final private static int POW5_BITCOUNT = 125;
+    final private static int POW5_INV_BITCOUNT = 125;
+    final private static int POW5_TABLE_SIZE = 326;
+    final private static int POW5_INV_TABLE_SIZE = 342;
+    final private static long MASK_32 = 0xffffffffL;
+
+    //-------------------------------------------------------------------------
+    ////////////////////////  Private Static Variables ////////////////////////
+    //-------------------------------------------------------------------------
+    // 128 bit multipliers (low and high 64 bits) for 5^i and 5^-i
+    private static final long[] POW5_SPLIT = new long[2 * POW5_TABLE_SIZE];
+    private static final long[] POW5_INV_SPLIT = new long[2 * POW5_INV_TABLE_SIZE];
+    private static final long[] POWERS_OF_10 = new long[19];
+    private static final char[] DIGIT_PAIRS = new char[200];
+
+    static
+    {
+        BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int i = 0; i < POW5_INV_TABLE_SIZE; i++)
+        {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int pow5len = pow.bitLength();
+            if (i < POW5_TABLE_SIZE)
+            {
+                int shift = pow5len - POW5_BITCOUNT;
+                BigInteger split = (shift >= 0) ? pow.shiftRight(shift)
+                        : pow.shiftLeft(-shift);
+                POW5_SPLIT[2 * i] = split.and(mask).longValue();
+                POW5_SPLIT[2 * i + 1] = split.shiftRight(64).longValue();
+            }
+            BigInteger inv = BigInteger.ONE.shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT)
+                    .divide(pow).add(BigInteger.ONE);
+            POW5_INV_SPLIT[2 * i] = inv.and(mask).longValue();
+            POW5_INV_SPLIT[2 * i + 1] = inv.shiftRight(64).longValue();
+        }
+        POWERS_OF_10[0] = 1;
+        for (int i = 1; i < POWERS_OF_10.length; i++)
+        {
+            POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+        }
+        for (int i = 0; i < 100; i++)
+        {
+            DIGIT_PAIRS[2 * i] = (char) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (char) ('0' + i % 10);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////////  Constructor ///////////////////////////////
+    //-------------------------------------------------------------------------
+    private NumberFormatter()
+    {
+    }
+
+    //-------------------------------------------------------------------------
+    /////////////////////////  Public Static Methods //////////////////////////
+    //-------------------------------------------------------------------------
+    /**
+     * Writes the shortest representation of a double that is parsed back into
+     * the same double.
+     *
+     * @param value the value
+     * @param dest the array to write into (at least MAX_LENGTH chars starting
+     * from pos)
+     * @param pos the position to start writing
+     * @return the position after the written chars
+     */
+    public static int format(double value, char[] dest, int pos)
+    {
+        return formatDouble(value, dest, null, pos);
+    }
+
+    /**
+     * @param value the value
+     * @param dest the array to write into (at least MAX_LENGTH bytes starting
+     * from pos)
+     * @param pos the position to start writing
+     * @return the position after the written bytes
+     * @see #format(double, char[], int)
+     */
+    public static int format(double value, byte[] dest, int pos)
+    {
+        return formatDouble(value, null, dest, pos);
+    }
+
+    /**
+     * Writes the shortest representation of a float that is parsed back into
+     * the same float (like Float.toString()).
+     *
+     * @param value the value
+     * @param dest the array to write into (at least MAX_LENGTH chars starting
+     * from pos)
+     * @param pos the position to start writing
+     * @return the position after the written chars
+     */
+    public static int format(float value, char[] dest, int pos)
+    {
+        return formatFloat(value, dest, null, pos);
+    }
+
+    public static int format(float value, byte[] dest, int pos)
+    {
+        return formatFloat(value, null, dest, pos);
+    }
+
+    /**
+     * Writes a double with a fixed number of decimals and without exponent
+     * (e.g. "1234.50" for 2 decimals).
+     *
+     * @param value the value
+     * @param decimals the number of digits after the decimal point (0 = no
+     * decimal point)
+     * @param dest the array to write into (at least maxFixedLength(decimals)
+     * chars starting from pos)
+     * @param pos the position to start writing
+     * @return the position after the written chars
+     */
+    public static int format(double value, int decimals, char[] dest, int pos)
+    {
+        return formatFixed(value, decimals, dest, null, pos);
+    }
+
+    public static int format(double value, int decimals, byte[] dest, int pos)
+    {
+        return formatFixed(value, decimals, null, dest, pos);
+    }
+
+    /**
+     * Writes a long in decimal notation.
+     *
+     * @param value the value
+     * @param dest the array to write into (at least MAX_LENGTH chars starting
+     * from pos)
+     * @param pos the position to start writing
+     * @return the position after the written chars
+     */
+    public static int format(long value, char[] dest, int pos)
+    {
+        return formatLong(value, dest, null, pos);
+    }
+
+    public static int format(long value, byte[] dest, int pos)
+    {
+        return formatLong(value, null, dest, pos);
+    }
+
+    /**
+     * @param decimals the number of decimals
+     * @return the maximum number of chars a double with the given number of
+     * decimals can take (see format(double, int, char[], int))
+     */
+    public static int maxFixedLength(int decimals)
+    {
+        // sign, 309 integer digits, decimal point and decimals
+        return 311 + Math.max(decimals, 0);
+    }
+
+    //-------------------------------------------------------------------------
+    //////////////////////////  Private Static Methods ////////////////////////
+    //-------------------------------------------------------------------------
+    private static int formatDouble(double value, char[] chars, byte[] bytes,
+            int pos)
+    {
+        long bits = Double.doubleToRawLongBits(value);
+        long mantissa = bits & ((1L << DOUBLE_MANTISSA_BITS) - 1);
+        int exponent = (int) ((bits >>> DOUBLE_MANTISSA_BITS) & 0x7ff);
+        return formatShortest(bits < 0, mantissa, exponent, 0x7ff,
+                DOUBLE_MANTISSA_BITS, DOUBLE_EXPONENT_BIAS, chars, bytes, pos);
+    }
+
+    private static int formatFloat(float value, char[] chars, byte[] bytes,
+            int pos)
+    {
+        int bits = Float.floatToRawIntBits(value);
+        long mantissa = bits & ((1 << FLOAT_MANTISSA_BITS) - 1);
+        int exponent = (bits >>> FLOAT_MANTISSA_BITS) & 0xff;
+        return formatShortest(bits < 0, mantissa, exponent, 0xff,
+                FLOAT_MANTISSA_BITS, FLOAT_EXPONENT_BIAS, chars, bytes, pos);
+    }
+
+    private static int formatShortest(boolean negative, long mantissa,
+            int exponent, int maxExponent, int mantissaBits, int bias,
+            char[] chars, byte[] bytes, int pos)
+    {
+        if (exponent == maxExponent)
+        {
+            return put((mantissa != 0) ? "NaN" : (negative ? "-Infinity"
+                    : "Infinity"), chars, bytes, pos);
+        }
+        if (negative)
+        {
+            pos = put('-', chars, bytes, pos);
+        }
+        if (exponent == 0 && mantissa == 0)
+        {
+            return put("0.0", chars, bytes, pos);
+        }
+        long decimal = shortestDecimal(mantissa, exponent, mantissaBits, bias);
+        long digits = decimal >>> REMOVED_BITS;
+        int length = decimalLength(digits);
+        int decimalExponent = intervalExponent(exponent, mantissaBits, bias)
+                + (int) (decimal & ((1 << REMOVED_BITS) - 1));
+        int scientificExponent = decimalExponent + length - 1;
+        if (scientificExponent >= -3 && scientificExponent < 7)
+        {
+            return putPlain(digits, length, decimalExponent, 1, chars, bytes,
+                    pos);
+        }
+        // d.dddE[-]x: the digits are written behind the first position and
+        // the first digit is moved in front of the decimal point
+        int end = putDigits(digits, length, chars, bytes, pos + 1);
+        put(charAt(chars, bytes, pos + 1), chars, bytes, pos);
+        put('.', chars, bytes, pos + 1);
+        pos = (length == 1) ? put('0', chars, bytes, end) : end;
+        pos = put('E', chars, bytes, pos);
+        return formatLong(scientificExponent, chars, bytes, pos);
+    }
+
+    /**
+     * Ryu: computes the shortest decimal in the rounding interval of the
+     * binary floating point number. The result is packed into a long to
+     * avoid an allocation per number: the decimal digits (at most 17, i.e.
+     * less than 2^57) are shifted left by REMOVED_BITS and the lower bits
+     * contain the number of digits that have been removed from the interval.
+     * The decimal exponent is intervalExponent() plus the removed digits.
+     *
+     * @return the packed decimal digits and removed digits
+     */
+    private static long shortestDecimal(long ieeeMantissa, int ieeeExponent,
+            int mantissaBits, int bias)
+    {
+        int e2;
+        long m2;
+        if (ieeeExponent == 0)
+        {
+            e2 = 1 - bias - mantissaBits - 2;
+            m2 = ieeeMantissa;
+        }
+        else
+        {
+            e2 = ieeeExponent - bias - mantissaBits - 2;
+            m2 = (1L << mantissaBits) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+        // the interval [mm, mp] contains all values that round to the number
+        long mv = 4 * m2;
+        int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+        long vr;
+        long vp;
+        long vm;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0)
+        {
+            int q = log10Pow2(e2) - ((e2 > 3) ? 1 : 0);
+            int k = POW5_INV_BITCOUNT + pow5Bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV_SPLIT, q, i);
+            vp = mulShift(mv + 2, POW5_INV_SPLIT, q, i);
+            vm = mulShift(mv - 1 - mmShift, POW5_INV_SPLIT, q, i);
+            if (q <= 21)
+            {
+                // only one of mp, mv and mm can be a multiple of 5
+                if (mv % 5 == 0)
+                {
+                    vrIsTrailingZeros = isMultipleOfPowerOf5(mv, q);
+                }
+                else if (acceptBounds)
+                {
+                    vmIsTrailingZeros = isMultipleOfPowerOf5(mv - 1 - mmShift, q);
+                }
+                else
+                {
+                    vp -= isMultipleOfPowerOf5(mv + 2, q) ? 1 : 0;
+                }
+            }
+        }
+        else
+        {
+            int q = log10Pow5(-e2) - ((-e2 > 1) ? 1 : 0);
+            int i = -e2 - q;
+            int k = pow5Bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift(mv, POW5_SPLIT, i, j);
+            vp = mulShift(mv + 2, POW5_SPLIT, i, j);
+            vm = mulShift(mv - 1 - mmShift, POW5_SPLIT, i, j);
+            if (q <= 1)
+            {
+                // mv has at least q trailing 0 bits, so vr has q trailing zeros
+                vrIsTrailingZeros = true;
+                if (acceptBounds)
+                {
+                    vmIsTrailingZeros = mmShift == 1;
+                }
+                else
+                {
+                    vp--;
+                }
+            }
+            else if (q < 63)
+            {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+        // remove digits as long as the interval contains a shorter decimal
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros)
+        {
+            while (vp / 10 > vm / 10)
+            {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros)
+            {
+                while (vm % 10 == 0)
+                {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0)
+            {
+                // exactly in the middle: round to even
+                lastRemovedDigit = 4;
+            }
+            output = vr + (((vr == vm && (!acceptBounds || !vmIsTrailingZeros))
+                    || lastRemovedDigit >= 5) ? 1 : 0);
+        }
+        else
+        {
+            boolean roundUp = false;
+            if (vp / 100 > vm / 100)
+            {
+                roundUp = vr % 100 >= 50;
+                vr /= 100;
+                vp /= 100;
+                vm /= 100;
+                removed += 2;
+            }
+            while (vp / 10 > vm / 10)
+            {
+                roundUp = vr % 10 >= 5;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + ((vr == vm || roundUp) ? 1 : 0);
+        }
+        return (output << REMOVED_BITS) | removed;
+    }
+
+    /**
+     * @return the decimal exponent of the interval of shortestDecimal()
+     * before any digit has been removed
+     */
+    private static int intervalExponent(int ieeeExponent, int mantissaBits,
+            int bias)
+    {
+        int e2 = ((ieeeExponent == 0) ? 1 : ieeeExponent) - bias - mantissaBits - 2;
+        return (e2 >= 0) ? log10Pow2(e2) - ((e2 > 3) ? 1 : 0)
+                : log10Pow5(-e2) - ((-e2 > 1) ? 1 : 0) + e2;
+    }
+
+    private static int formatFixed(double value, int decimals, char[] chars,
+            byte[] bytes, int pos)
+    {
+        decimals = Math.max(decimals, 0);
+        long bits = Double.doubleToRawLongBits(value);
+        long mantissa = bits & ((1L << DOUBLE_MANTISSA_BITS) - 1);
+        int exponent = (int) ((bits >>> DOUBLE_MANTISSA_BITS) & 0x7ff);
+        if (exponent == 0x7ff)
+        {
+            return formatDouble(value, chars, bytes, pos);
+        }
+        if (bits < 0)
+        {
+            pos = put('-', chars, bytes, pos);
+        }
+        long digits = 0;
+        int length = 1;
+        int decimalExponent = -decimals;
+        if (exponent != 0 || mantissa != 0)
+        {
+            long decimal = shortestDecimal(mantissa, exponent,
+                    DOUBLE_MANTISSA_BITS, DOUBLE_EXPONENT_BIAS);
+            digits = decimal >>> REMOVED_BITS;
+            length = decimalLength(digits);
+            decimalExponent = intervalExponent(exponent, DOUBLE_MANTISSA_BITS,
+                    DOUBLE_EXPONENT_BIAS)
+                    + (int) (decimal & ((1 << REMOVED_BITS) - 1));
+            // number of digits that remain after rounding
+            long keep = (long) length + decimalExponent + decimals;
+            if (keep < length)
+            {
+                if (keep < 0)
+                {
+                    digits = 0;
+                }
+                else
+                {
+                    long divisor = POWERS_OF_10[(int) (length - keep)];
+                    long remainder = digits % divisor;
+                    digits = digits / divisor + ((2 * remainder >= divisor) ? 1 : 0);
+                }
+                length = decimalLength(digits);
+                decimalExponent = -decimals;
+            }
+        }
+        return putPlain(digits, length, decimalExponent, decimals, chars, bytes,
+                pos);
+    }
+
+    /**
+     * Writes digits * 10^decimalExponent without exponent and with at least
+     * minDecimals digits after the decimal point (0 = no decimal point).
+     */
+    private static int putPlain(long digits, int length, int decimalExponent,
+            int minDecimals, char[] chars, byte[] bytes, int pos)
+    {
+        int decimals;
+        if (decimalExponent >= 0)
+        {
+            pos = putDigits(digits, length, chars, bytes, pos);
+            for (int i = 0; i < decimalExponent; i++)
+            {
+                pos = put('0', chars, bytes, pos);
+            }
+            decimals = 0;
+        }
+        else
+        {
+            int point = length + decimalExponent;
+            decimals = -decimalExponent;
+            if (point <= 0)
+            {
+                pos = put('0', chars, bytes, pos);
+                pos = put('.', chars, bytes, pos);
+                for (int i = point; i < 0; i++)
+                {
+                    pos = put('0', chars, bytes, pos);
+                }
+                pos = putDigits(digits, length, chars, bytes, pos);
+            }
+            else
+            {
+                long divisor = POWERS_OF_10[decimals];
+                pos = putDigits(digits / divisor, point, chars, bytes, pos);
+                pos = put('.', chars, bytes, pos);
+                pos = putDigits(digits % divisor, decimals, chars, bytes, pos);
+            }
+        }
+        if (decimals < minDecimals)
+        {
+            if (decimals == 0)
+            {
+                pos = put('.', chars, bytes, pos);
+            }
+            for (int i = decimals; i < minDecimals; i++)
+            {
+                pos = put('0', chars, bytes, pos);
+            }
+        }
+        return pos;
+    }
+
+    private static int formatLong(long value, char[] chars, byte[] bytes,
+            int pos)
+    {
+        if (value < 0)
+        {
+            pos = put('-', chars, bytes, pos);
+            if (value == Long.MIN_VALUE)
+            {
+                // -(MIN_VALUE / 10) and the last digit
+                pos = putDigits(922337203685477580L, 18, chars, bytes, pos);
+                return put('8', chars, bytes, pos);
+            }
+            value = -value;
+        }
+        return putDigits(value, decimalLength(value), chars, bytes, pos);
+    }
+
+    /**
+     * Writes the last length digits of a positive number (with leading zeros
+     * if the number is shorter).
+     */
+    private static int putDigits(long value, int length, char[] chars,
+            byte[] bytes, int pos)
+    {
+        int p = pos + length;
+        while (p - pos >= 2)
+        {
+            int pair = (int) (value % 100) * 2;
+            value /= 100;
+            put(DIGIT_PAIRS[pair + 1], chars, bytes, --p);
+            put(DIGIT_PAIRS[pair], chars, bytes, --p);
+        }
+        if (p > pos)
+        {
+            put((char) ('0' + value % 10), chars, bytes, pos);
+        }
+        return pos + length;
+    }
+
+    private static int put(char c, char[] chars, byte[] bytes, int pos)
+    {
+        if (chars != null)
+        {
+            chars[pos] = c;
+        }
+        else
+        {
+            bytes[pos] = (byte) c;
+        }
+        return pos + 1;
+    }
+
+    private static int put(String s, char[] chars, byte[] bytes, int pos)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            pos = put(s.charAt(i), chars, bytes, pos);
+        }
+        return pos;
+    }
+
+    private static char charAt(char[] chars, byte[] bytes, int pos)
+    {
+        return (chars != null) ? chars[pos] : (char) bytes[pos];
+    }
+
+    /**
+     * @return the number of decimal digits of a positive number (1 for 0)
+     */
+    private static int decimalLength(long value)
+    {
+        int length = 1;
+        while (length < POWERS_OF_10.length && value >= POWERS_OF_10[length])
+        {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return (m * multiplier) >> shift, where the multiplier is the 128 bit
+     * entry of the table
+     */
+    private static long mulShift(long m, long[] table, int index, int shift)
+    {
+        long low = table[2 * index];
+        long high = table[2 * index + 1];
+        long lowProductHigh = multiplyHigh(m, low);
+        long highProductLow = m * high;
+        long highProductHigh = multiplyHigh(m, high);
+        long sum = lowProductHigh + highProductLow;
+        if (Long.compareUnsigned(sum, lowProductHigh) < 0)
+        {
+            highProductHigh++;
+        }
+        int s = shift - 64;
+        return (highProductHigh << (64 - s)) | (sum >>> s);
+    }
+
+    /**
+     * @return the high 64 bits of the unsigned 128 bit product
+     */
+    private static long multiplyHigh(long a, long b)
+    {
+        long a0 = a & MASK_32;
+        long a1 = a >>> 32;
+        long b0 = b & MASK_32;
+        long b1 = b >>> 32;
+        long p01 = a0 * b1;
+        long p10 = a1 * b0;
+        long middle = ((a0 * b0) >>> 32) + (p01 & MASK_32) + (p10 & MASK_32);
+        return a1 * b1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    private static boolean isMultipleOfPowerOf5(long value, int p)
+    {
+        int count = 0;
+        while (value > 0 && value % 5 == 0)
+        {
+            value /= 5;
+            count++;
+        }
+        return count >= p;
+    }
+
+    /**
+     * @return floor(log10(2^e))
+     */
+    private static int log10Pow2(int e)
+    {
+        return (e * 78913) >>> 18;
+    }
+
+    /**
+     * @return floor(log10(5^e))
+     */
+    private static int log10Pow5(int e)
+    {
+        return (e * 732923) >>> 20;
+    }
+
+    /**
+     * @return the number of bits of 5^e (1 for e = 0)
+     */
+    private static int pow5Bits(int e)
+    {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+}
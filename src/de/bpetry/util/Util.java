@@ -100,23 +100,26 @@ public class Util
     }
 
     /**
-     * Converts an double array into a string. Uses ';' as delimiter.
+     * Converts an double array into a string. Uses ';' as delimiter. The
+     * values are written with the shortest digits that are parsed back into
+     * the same values (see NumberFormatter).
      *
      * @param array array to convert
      * @return string representation of an array
      */
     public static String doubleArrayToString(double[] array)
     {
-        StringBuilder buf = new StringBuilder();
+        char[] buf = new char[array.length * (NumberFormatter.MAX_LENGTH + 1)];
+        int length = 0;
         for (double d : array)
         {
-            if (buf.length() != 0)
+            if (length != 0)
             {
-                buf.append(';');
+                buf[length++] = ';';
             }
-            buf.append(d);
+            length = NumberFormatter.format(d, buf, length);
         }
-        return buf.toString();
+        return new String(buf, 0, length);
     }
 
     /**